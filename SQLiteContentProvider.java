@@ -25,7 +25,7 @@
  |
  |                     App specific alterations:-
  |                         1. At line 37 use package name specific to your app.
- |                         2. At line 90 enter name of your provider authority. This should be
+ |                         2. At line 111 enter name of your provider authority. This should be
  |                            in internet domain ownership format, e.g. com.abc.xyz
  |
  |      Inherits from: ContentProvider.class
@@ -41,6 +41,7 @@ import android.app.Service;
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
@@ -49,6 +50,7 @@ import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -60,24 +62,43 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 import com.cqueltech.sqlitedevstudio.ContentProviderAidlCallback;
 import com.cqueltech.sqlitedevstudio.ContentProviderAidlInterface;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
@@ -99,6 +120,11 @@ public class SQLiteContentProvider extends ContentProvider {
     private static final String PATH_COMPLEX_QUERY = "complex_query";
     private static final String PATH_APPLY_BATCH = "apply_batch";
     private static final String PATH_FK_CONSTRAINT = "fk_constraint";
+    // Notification URIs, content://<authority>/changes/<database>[/<table>]. Not matched by
+    // uriMatcher, clients register content observers against them.
+    private static final String PATH_TABLE_CHANGES = "changes";
+    private static final String PATH_CHANGES_SINCE = "changes_since";
+    private static final String PATH_BACKUP = "backup";
 
     private static final int DML_STATEMENT = 2;
     private static final int DDL_STATEMENT = 6;
@@ -106,23 +132,45 @@ public class SQLiteContentProvider extends ContentProvider {
     private static final int COMPLEX_QUERY = 4;
     private static final int APPLY_BATCH = 5;
     private static final int FK_CONSTRAINT = 7;
+    private static final int CHANGES_SINCE = 8;
+    private static final int BACKUP = 9;
 
     private static final String KEY_URI_PARAMETER_TABLE = "table";
     private static final String KEY_URI_PARAMETER_SQL = "sql";
     private static final String KEY_URI_PARAMETER_LIMIT = "limit";
     private static final String KEY_URI_PARAMETER_PROVIDER_ACCESS_CODE = "access_code";
     private static final String KEY_URI_PARAMETER_FK = "foreign_key";
+    private static final String KEY_URI_PARAMETER_SINCE_VERSION = "since_version";
     private static final String KEY_PREFERENCE_ENCRYPTION_KEY = "key";
     private static final String KEY_PREFERENCE_ACCESS_CODE = "access_code";
     private static final String KEY_BUNDLE_CONNECTION_CHECK = "connection_check";
     private static final String KEY_BUNDLE_DATABASE = "database";
+    private static final String KEY_BUNDLE_ACCESS_CODE = "access_code";
+    private static final String KEY_BUNDLE_CHANGE_VERSION = "change_version";
+    private static final String KEY_BUNDLE_MIN_CHANGE_VERSION = "min_change_version";
+    private static final String KEY_BUNDLE_APPROXIMATE = "approximate";
+    private static final String KEY_BUNDLE_ROW_COUNT = "row_count";
+    private static final String KEY_BUNDLE_ROW_COUNT_SOURCE = "row_count_source";
+    private static final String KEY_BUNDLE_VERIFY = "verify";
+    private static final String KEY_BUNDLE_INDEX_SUGGESTIONS = "index_suggestions";
 
     private static final String PROVIDER_CALL_METHOD_OPEN = "openDatabaseConnection";
     private static final String PROVIDER_CALL_METHOD_CLOSE = "closeDatabaseConnection";
     private static final String PROVIDER_CALL_METHOD_CHECK = "checkDatabaseConnectionExists";
+    private static final String PROVIDER_CALL_METHOD_ENABLE_CHANGE_TRACKING = "enableChangeTracking";
+    private static final String PROVIDER_CALL_METHOD_DISABLE_CHANGE_TRACKING = "disableChangeTracking";
+    private static final String PROVIDER_CALL_METHOD_CHANGE_VERSION = "getChangeVersion";
+    private static final String PROVIDER_CALL_METHOD_COMPACT_CHANGE_LOG = "compactChangeLog";
+    private static final String PROVIDER_CALL_METHOD_ROW_COUNT = "getRowCount";
+    private static final String PROVIDER_CALL_METHOD_INDEX_ADVICE = "getIndexSuggestions";
 
-    private static DBHelper dbHelper;
-    private static SQLiteDatabase db;
+    private static final AtomicReference<ConnectionHandle> currentConnection = new AtomicReference<>();
+    private static ChangeNotifier changeNotifier;
+
+    private static final Pattern STATEMENT_TABLE_PATTERN = Pattern.compile(
+            "^\\s*(?:insert(?:\\s+or\\s+\\w+)?\\s+into|replace\\s+into|update(?:\\s+or\\s+\\w+)?|delete\\s+from)" +
+                    "\\s+(?:\\w+\\.)?[\"`\\[]?(\\w+)",
+            Pattern.CASE_INSENSITIVE);
 
     private static final UriMatcher uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
@@ -133,6 +181,8 @@ public class SQLiteContentProvider extends ContentProvider {
         uriMatcher.addURI(AUTHORITY, PATH_COMPLEX_QUERY, COMPLEX_QUERY);
         uriMatcher.addURI(AUTHORITY, PATH_APPLY_BATCH, APPLY_BATCH);
         uriMatcher.addURI(AUTHORITY, PATH_FK_CONSTRAINT, FK_CONSTRAINT);
+        uriMatcher.addURI(AUTHORITY, PATH_CHANGES_SINCE, CHANGES_SINCE);
+        uriMatcher.addURI(AUTHORITY, PATH_BACKUP + "/*", BACKUP);
     }
 
     @Override
@@ -148,6 +198,7 @@ public class SQLiteContentProvider extends ContentProvider {
             prefEditor.apply();
         }
         sharedPreferences = getContext().getSharedPreferences(SHARED_PREF, Context.MODE_PRIVATE);
+        changeNotifier = new ChangeNotifier(getContext().getContentResolver());
         return true;
     }
 
@@ -175,11 +226,1540 @@ public class SQLiteContentProvider extends ContentProvider {
             }
         }
 
-        @Override
-        public void onOpen(SQLiteDatabase db) {
-            if (!db.isWriteAheadLoggingEnabled()) {
-                db.enableWriteAheadLogging();
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            if (!db.isWriteAheadLoggingEnabled()) {
+                db.enableWriteAheadLogging();
+            }
+        }
+    }
+
+    /*
+     * The DBHelper and database used by the provider's Binder threads. Every user acquires a
+     * reference for the duration of its work, a returned cursor holding its reference until the
+     * client closes it, and the provider itself holds one reference while the handle is current.
+     * Opening or closing a database swaps the current handle atomically and drops the provider's
+     * reference, so the old database is only closed once its last in-flight user has released it.
+     */
+    private static class ConnectionHandle {
+        final DBHelper dbHelper;
+        final SQLiteDatabase db;
+        final String databaseName;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        ConnectionHandle(DBHelper dbHelper, SQLiteDatabase db, String databaseName) {
+            this.dbHelper = dbHelper;
+            this.db = db;
+            this.databaseName = databaseName;
+        }
+
+        boolean tryAcquire() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                dbHelper.close();
+            }
+        }
+    }
+
+    private static class ConnectionCursor extends CursorWrapper {
+        private final ConnectionHandle connection;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        ConnectionCursor(Cursor cursor, ConnectionHandle connection) {
+            super(cursor);
+            this.connection = connection;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            if (released.compareAndSet(false, true)) {
+                connection.release();
+            }
+        }
+    }
+
+    /*
+     * Sends ContentResolver change notifications for the tables written through the provider and
+     * the AIDL service. Notifications are collected into a set of URIs and flushed once writes have
+     * been quiet for DEBOUNCE_MS (or MAX_DELAY_MS has passed), so repeated writes to a table produce
+     * a single notification. While a hold is active (open transaction, batch, bulk insert) URIs are
+     * kept back and only released if the held work completes, a rollback discards them.
+     */
+    private static class ChangeNotifier {
+        private static final long DEBOUNCE_MS = 100L;
+        private static final long MAX_DELAY_MS = 1000L;
+
+        private final ContentResolver contentResolver;
+        private final Handler handler = new Handler(Looper.getMainLooper());
+        private final Set<Uri> pendingUris = new LinkedHashSet<>();
+        private final Set<Uri> heldUris = new LinkedHashSet<>();
+        private int holdCount;
+        private long firstPendingTime;
+
+        private final Runnable flushRunnable = new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        };
+
+        ChangeNotifier(ContentResolver contentResolver) {
+            this.contentResolver = contentResolver;
+        }
+
+        static Uri buildChangeUri(String dbName, String table) {
+            Uri.Builder builder = BASE_URI.buildUpon().appendPath(PATH_TABLE_CHANGES);
+            if (dbName != null) {
+                builder.appendPath(dbName);
+                if (table != null) {
+                    builder.appendPath(table);
+                }
+            }
+            return builder.build();
+        }
+
+        static String getStatementTable(String sql) {
+            if (sql == null) {
+                return null;
+            }
+            Matcher matcher = STATEMENT_TABLE_PATTERN.matcher(sql);
+            return matcher.find() ? matcher.group(1) : null;
+        }
+
+        /*
+         * A null table notifies the database URI, which also reaches observers of its tables.
+         */
+        synchronized void notifyTableChanged(String dbName, String table) {
+            Uri uri = buildChangeUri(dbName, table);
+            if (holdCount > 0) {
+                heldUris.add(uri);
+            } else {
+                pendingUris.add(uri);
+                scheduleFlush();
+            }
+        }
+
+        synchronized void beginHold() {
+            holdCount++;
+        }
+
+        synchronized void endHold(boolean changesCommitted) {
+            if (holdCount == 0) {
+                return;
+            }
+            if (!changesCommitted) {
+                heldUris.clear();
+            }
+            if (--holdCount == 0 && !heldUris.isEmpty()) {
+                pendingUris.addAll(heldUris);
+                heldUris.clear();
+                scheduleFlush();
+            }
+        }
+
+        private void scheduleFlush() {
+            long now = System.currentTimeMillis();
+            if (firstPendingTime == 0L) {
+                firstPendingTime = now;
+            }
+            handler.removeCallbacks(flushRunnable);
+            if (now - firstPendingTime >= MAX_DELAY_MS) {
+                handler.post(flushRunnable);
+            } else {
+                handler.postDelayed(flushRunnable, DEBOUNCE_MS);
+            }
+        }
+
+        private void flush() {
+            List<Uri> uris;
+            synchronized (this) {
+                uris = new ArrayList<>(pendingUris);
+                pendingUris.clear();
+                firstPendingTime = 0L;
+            }
+            for (Uri uri : uris) {
+                contentResolver.notifyChange(uri, null);
+            }
+        }
+    }
+
+    /*
+     * Opt-in, per table change tracking for incremental sync. Triggers installed on a tracked table
+     * append (table, rowid, op) to a shared change log whose AUTOINCREMENT key is the change version.
+     * Only tables with an INTEGER PRIMARY KEY are tracked: the rowid is then the declared key, while an
+     * implicit rowid can be renumbered by VACUUM and would point logged changes at other rows.
+     * Clients remember the last version they have seen and ask only for rows changed since then.
+     * Compaction keeps the latest entry per row and trims versions older than MAX_RETAINED_VERSIONS,
+     * recording the trimmed boundary so that clients behind it know a full resync is required. It is
+     * due once the log spans COMPACT_GROWTH_VERSIONS more than that, which is read from the database
+     * and so counts writes made through the provider and the service alike. The service checks in
+     * its idle maintenance, the provider after every COMPACT_CHECK_ROWS rows it writes, and clients
+     * can compact at any time with the compactChangeLog call or the service's compact operation.
+     */
+    private static class ChangeTracker {
+        static final String CHANGE_LOG_TABLE = "_provider_change_log";
+        private static final String CHANGE_LOG_META_TABLE = "_provider_change_log_meta";
+        private static final String TRIGGER_PREFIX = "_provider_ct_";
+        private static final String[] TRIGGER_OPERATIONS = {"insert", "update", "delete"};
+        private static final long MAX_RETAINED_VERSIONS = 100000L;
+        private static final long COMPACT_GROWTH_VERSIONS = 10000L;
+        private static final long COMPACT_CHECK_ROWS = 1000L;
+
+        private static long rowsSinceCompactionCheck;
+
+        static long enable(SQLiteDatabase db, String table) {
+            if (table == null || table.startsWith("_provider_") || table.startsWith("sqlite_")) {
+                throw new SQLException("Change tracking not supported for table " + table);
+            }
+            String quotedTable = quoteIdentifier(table);
+            String tableLiteral = quoteLiteral(table);
+            // Throws for WITHOUT ROWID tables, which have no rowid to record.
+            db.rawQuery("select rowid from " + quotedTable + " limit 0", null).close();
+            if (!hasIntegerPrimaryKey(db, table)) {
+                throw new SQLException("Change tracking requires an INTEGER PRIMARY KEY on table " + table);
+            }
+
+            db.beginTransaction();
+            try {
+                db.execSQL("create table if not exists " + CHANGE_LOG_TABLE + " (" +
+                        "version integer primary key autoincrement, " +
+                        "tbl text not null, " +
+                        "row_id integer not null, " +
+                        "op text not null)");
+                db.execSQL("create index if not exists " + CHANGE_LOG_TABLE + "_tbl on " +
+                        CHANGE_LOG_TABLE + " (tbl, version)");
+                db.execSQL("create table if not exists " + CHANGE_LOG_META_TABLE + " (" +
+                        "tbl text primary key, " +
+                        "min_version integer not null)");
+
+                db.execSQL("create trigger if not exists " + quoteIdentifier(TRIGGER_PREFIX + table + "_insert") +
+                        " after insert on " + quotedTable + " begin " +
+                        "insert into " + CHANGE_LOG_TABLE + " (tbl, row_id, op) values (" + tableLiteral + ", new.rowid, 'insert'); " +
+                        "end");
+                db.execSQL("create trigger if not exists " + quoteIdentifier(TRIGGER_PREFIX + table + "_update") +
+                        " after update on " + quotedTable + " begin " +
+                        "insert into " + CHANGE_LOG_TABLE + " (tbl, row_id, op) " +
+                        "select " + tableLiteral + ", old.rowid, 'delete' where old.rowid is not new.rowid; " +
+                        "insert into " + CHANGE_LOG_TABLE + " (tbl, row_id, op) values (" + tableLiteral + ", new.rowid, 'update'); " +
+                        "end");
+                db.execSQL("create trigger if not exists " + quoteIdentifier(TRIGGER_PREFIX + table + "_delete") +
+                        " after delete on " + quotedTable + " begin " +
+                        "insert into " + CHANGE_LOG_TABLE + " (tbl, row_id, op) values (" + tableLiteral + ", old.rowid, 'delete'); " +
+                        "end");
+
+                long version = getCurrentVersion(db);
+                db.execSQL("insert or ignore into " + CHANGE_LOG_META_TABLE + " (tbl, min_version) values (?, ?)",
+                        new Object[]{table, version});
+                db.setTransactionSuccessful();
+                return version;
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        static void disable(SQLiteDatabase db, String table) {
+            requireTable(table);
+            db.beginTransaction();
+            try {
+                for (String operation : TRIGGER_OPERATIONS) {
+                    db.execSQL("drop trigger if exists " + quoteIdentifier(TRIGGER_PREFIX + table + "_" + operation));
+                }
+                if (isInstalled(db)) {
+                    db.execSQL("delete from " + CHANGE_LOG_TABLE + " where tbl = ?", new Object[]{table});
+                    db.execSQL("delete from " + CHANGE_LOG_META_TABLE + " where tbl = ?", new Object[]{table});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        private static boolean hasIntegerPrimaryKey(SQLiteDatabase db, String table) {
+            int primaryKeyColumns = 0;
+            boolean integer = false;
+            Cursor cursor = db.rawQuery("pragma table_info(" + quoteIdentifier(table) + ")", null);
+            try {
+                while (cursor.moveToNext()) {
+                    if (cursor.getInt(5) > 0) {
+                        primaryKeyColumns++;
+                        integer = "INTEGER".equalsIgnoreCase(cursor.getString(2));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            return primaryKeyColumns == 1 && integer;
+        }
+
+        /*
+         * A null table would reach a bind call, which throws IllegalArgumentException rather than the
+         * SQLException callers report back to the client.
+         */
+        private static void requireTable(String table) {
+            if (table == null) {
+                throw new SQLException("No table given for change tracking");
+            }
+        }
+
+        static boolean isInstalled(SQLiteDatabase db) {
+            Cursor cursor = db.rawQuery("select 1 from sqlite_master where type = 'table' and name = ?",
+                    new String[]{CHANGE_LOG_META_TABLE});
+            try {
+                return cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+        }
+
+        static long getCurrentVersion(SQLiteDatabase db) {
+            if (!isInstalled(db)) {
+                return 0L;
+            }
+            return queryLong(db, "select seq from sqlite_sequence where name = ?", new String[]{CHANGE_LOG_TABLE}, 0L);
+        }
+
+        /*
+         * Returns -1 when the table is not tracked.
+         */
+        static long getMinimumVersion(SQLiteDatabase db, String table) {
+            if (table == null || !isInstalled(db)) {
+                return -1L;
+            }
+            return queryLong(db, "select min_version from " + CHANGE_LOG_META_TABLE + " where tbl = ?",
+                    new String[]{table}, -1L);
+        }
+
+        /*
+         * One row per changed rowid holding its latest operation and version followed by the
+         * current row values (null once deleted).
+         */
+        static Cursor queryChangesSince(SQLiteDatabase db, String table, String[] projection,
+                                        long sinceVersion, CancellationSignal cancellationSignal) {
+            requireTable(table);
+            long minimumVersion = getMinimumVersion(db, table);
+            if (minimumVersion < 0L) {
+                throw new SQLException("Change tracking not enabled for table " + table);
+            }
+            if (sinceVersion < minimumVersion) {
+                throw new SQLException("Change log compacted past version " + sinceVersion +
+                        ", full resync of " + table + " required");
+            }
+
+            StringBuilder columns = new StringBuilder();
+            if (projection == null || projection.length == 0) {
+                columns.append("t.*");
+            } else {
+                for (int i = 0; i < projection.length; i++) {
+                    if (i > 0) {
+                        columns.append(", ");
+                    }
+                    columns.append("t.").append(quoteIdentifier(projection[i]));
+                }
+            }
+            return db.rawQuery("select c.version as _change_version, c.op as _change_op, c.row_id as _change_rowid, " +
+                    columns + " from (select row_id, op, max(version) as version from " + CHANGE_LOG_TABLE +
+                    " where tbl = ? and version > ? group by row_id) c left join " + quoteIdentifier(table) +
+                    " t on t.rowid = c.row_id order by c.version",
+                    new String[]{table, String.valueOf(sinceVersion)}, cancellationSignal);
+        }
+
+        static boolean needsCompaction(SQLiteDatabase db) {
+            if (!isInstalled(db)) {
+                return false;
+            }
+            long oldestVersion = queryLong(db, "select min(min_version) from " + CHANGE_LOG_META_TABLE, null, -1L);
+            return oldestVersion >= 0L &&
+                    getCurrentVersion(db) - oldestVersion >= MAX_RETAINED_VERSIONS + COMPACT_GROWTH_VERSIONS;
+        }
+
+        /*
+         * Called by the provider after its writes, it has no idle time of its own to compact in.
+         */
+        static void onRowsChanged(SQLiteDatabase db, long rowCount) {
+            synchronized (ChangeTracker.class) {
+                rowsSinceCompactionCheck += rowCount;
+                if (rowsSinceCompactionCheck < COMPACT_CHECK_ROWS) {
+                    return;
+                }
+                rowsSinceCompactionCheck = 0L;
+            }
+            try {
+                if (needsCompaction(db)) {
+                    compact(db);
+                }
+            } catch (SQLException e) {
+                Log.d("SQLiteContentProvider", "Exception:" + e.toString());
+            }
+        }
+
+        /*
+         * Returns the number of log entries removed.
+         */
+        static int compact(SQLiteDatabase db) {
+            if (!isInstalled(db)) {
+                return 0;
+            }
+            int removed = 0;
+            db.beginTransaction();
+            try {
+                db.execSQL("delete from " + CHANGE_LOG_TABLE + " where version not in (" +
+                        "select max(version) from " + CHANGE_LOG_TABLE + " group by tbl, row_id)");
+                removed += (int) queryLong(db, "select changes()", null, 0L);
+
+                long cutoff = getCurrentVersion(db) - MAX_RETAINED_VERSIONS;
+                if (cutoff > 0L) {
+                    db.execSQL("delete from " + CHANGE_LOG_TABLE + " where version <= ?", new Object[]{cutoff});
+                    removed += (int) queryLong(db, "select changes()", null, 0L);
+                    db.execSQL("update " + CHANGE_LOG_META_TABLE + " set min_version = ? where min_version < ?",
+                            new Object[]{cutoff, cutoff});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return removed;
+        }
+    }
+
+    /*
+     * One pass snapshot of every table, view, index and trigger together with table and view columns,
+     * cached per database file. PRAGMA schema_version is checked on every request so schema changes
+     * made through any connection are picked up, the provider's own DDL paths also invalidate it.
+     * Rows follow the query result format (a name:type header then comma separated values) with
+     * commas and backslashes inside values escaped by a backslash.
+     */
+    private static class SchemaSnapshotCache {
+        private static final Map<String, CachedSchemaSnapshot> snapshots = new HashMap<>();
+
+        private static class CachedSchemaSnapshot {
+            final long schemaVersion;
+            final List<String> rows;
+
+            CachedSchemaSnapshot(long schemaVersion, List<String> rows) {
+                this.schemaVersion = schemaVersion;
+                this.rows = rows;
+            }
+        }
+
+        static synchronized List<String> getSnapshot(SQLiteDatabase db) {
+            long schemaVersion = queryLong(db, "pragma schema_version", null, 0L);
+            CachedSchemaSnapshot cached = snapshots.get(db.getPath());
+            if (cached == null || cached.schemaVersion != schemaVersion) {
+                cached = new CachedSchemaSnapshot(schemaVersion, buildSnapshot(db));
+                snapshots.put(db.getPath(), cached);
+            }
+            return new ArrayList<>(cached.rows);
+        }
+
+        static synchronized void invalidate(SQLiteDatabase db) {
+            if (db != null) {
+                snapshots.remove(db.getPath());
+            }
+        }
+
+        private static List<String> buildSnapshot(SQLiteDatabase db) {
+            List<String> rows = new ArrayList<>();
+            rows.add("kind:3,table:3,name:3,position:1,type:3,detail:3");
+
+            Cursor master = db.rawQuery("select type, name, tbl_name from sqlite_master " +
+                    "where name not like 'sqlite_%' order by case type when 'table' then 0 when 'view' then 1 " +
+                    "when 'index' then 2 else 3 end, tbl_name, name", null);
+            try {
+                while (master.moveToNext()) {
+                    String type = master.getString(0);
+                    String name = master.getString(1);
+                    String table = master.getString(2);
+                    if (type.equals("index")) {
+                        continue;
+                    }
+                    addRow(rows, type, table, name, null, null, null);
+                    if (type.equals("table") || type.equals("view")) {
+                        addColumns(db, rows, name);
+                        if (type.equals("table")) {
+                            addIndexes(db, rows, name);
+                        }
+                    }
+                }
+            } finally {
+                master.close();
+            }
+            return rows;
+        }
+
+        private static void addColumns(SQLiteDatabase db, List<String> rows, String table) {
+            Cursor cursor = db.rawQuery("pragma table_info(" + quoteIdentifier(table) + ")", null);
+            try {
+                while (cursor.moveToNext()) {
+                    String detail = "notnull=" + cursor.getInt(3) + "|pk=" + cursor.getInt(5);
+                    if (!cursor.isNull(4)) {
+                        detail += "|default=" + cursor.getString(4);
+                    }
+                    addRow(rows, "column", table, cursor.getString(1), String.valueOf(cursor.getInt(0)),
+                            cursor.getString(2), detail);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        private static void addIndexes(SQLiteDatabase db, List<String> rows, String table) {
+            Cursor indexes = db.rawQuery("pragma index_list(" + quoteIdentifier(table) + ")", null);
+            try {
+                int nameColumn = indexes.getColumnIndex("name");
+                int uniqueColumn = indexes.getColumnIndex("unique");
+                while (indexes.moveToNext()) {
+                    String index = indexes.getString(nameColumn);
+                    StringBuilder columns = new StringBuilder();
+                    Cursor indexColumns = db.rawQuery("pragma index_info(" + quoteIdentifier(index) + ")", null);
+                    try {
+                        while (indexColumns.moveToNext()) {
+                            if (columns.length() > 0) {
+                                columns.append("|");
+                            }
+                            columns.append(indexColumns.getString(2));
+                        }
+                    } finally {
+                        indexColumns.close();
+                    }
+                    addRow(rows, "index", table, index, null,
+                            indexes.getInt(uniqueColumn) == 1 ? "unique" : null, columns.toString());
+                }
+            } finally {
+                indexes.close();
+            }
+        }
+
+        private static void addRow(List<String> rows, String kind, String table, String name,
+                                   String position, String type, String detail) {
+            rows.add(escapeValue(kind) + "," + escapeValue(table) + "," + escapeValue(name) + "," +
+                    escapeValue(position) + "," + escapeValue(type) + "," + escapeValue(detail));
+        }
+    }
+
+    /*
+     * Row counts for paging. Exact counts are cached only for the service's connection and kept
+     * current by the structured inserts and deletes made through it. PRAGMA data_version is stamped
+     * on the cache and changes when any other connection commits, which drops every count. The value
+     * is only comparable on one connection, and the service's is its only one, where every count and
+     * every write run on the worker thread and an adjustment is applied in the same transaction as
+     * the write it accounts for. The provider reads through pooled WAL connections, so its
+     * getRowCount call never caches and always counts. Writes that can reach other tables through
+     * triggers or foreign key actions invalidate those counts, as do raw SQL, DDL and rollbacks, and
+     * so do writes to a table with triggers, whose effects changes() leaves out. Approximate counts
+     * come from sqlite_stat1, kept by ANALYZE and PRAGMA optimize, falling back to max(rowid) and
+     * finally to an exact count.
+     */
+    private static class RowCountCache {
+        static final String SOURCE_EXACT = "exact";
+        static final String SOURCE_CACHED = "cached";
+        static final String SOURCE_ESTIMATED = "estimated";
+
+        private static final Map<SQLiteDatabase, CachedRowCounts> counts = new WeakHashMap<>();
+
+        private static class CachedRowCounts {
+            final long dataVersion;
+            final Map<String, Long> tables = new HashMap<>();
+
+            CachedRowCounts(long dataVersion) {
+                this.dataVersion = dataVersion;
+            }
+        }
+
+        static class RowCount {
+            final long count;
+            final String source;
+
+            RowCount(long count, String source) {
+                this.count = count;
+                this.source = source;
+            }
+        }
+
+        /*
+         * cacheable must only be true for a database with a single connection.
+         */
+        static RowCount getRowCount(SQLiteDatabase db, String table, boolean approximate, boolean cacheable) {
+            if (table == null) {
+                throw new SQLException("No table given for row count");
+            }
+            if (queryLong(db, "select count(*) from sqlite_master where type in ('table', 'view') and name = ? collate nocase",
+                    new String[]{table}, 0L) == 0L) {
+                throw new SQLException("no such table: " + table);
+            }
+            if (approximate) {
+                RowCount estimate = estimateRowCount(db, table);
+                if (estimate != null) {
+                    return estimate;
+                }
+            }
+            if (!cacheable) {
+                return new RowCount(countRows(db, table), SOURCE_EXACT);
+            }
+
+            long dataVersion = queryLong(db, "pragma data_version", null, 0L);
+            synchronized (RowCountCache.class) {
+                CachedRowCounts cached = counts.get(db);
+                if (cached != null && cached.dataVersion == dataVersion && cached.tables.containsKey(table)) {
+                    return new RowCount(cached.tables.get(table), SOURCE_CACHED);
+                }
+            }
+            long count = countRows(db, table);
+            synchronized (RowCountCache.class) {
+                CachedRowCounts cached = counts.get(db);
+                if (cached == null || cached.dataVersion != dataVersion) {
+                    cached = new CachedRowCounts(dataVersion);
+                    counts.put(db, cached);
+                }
+                cached.tables.put(table, count);
+            }
+            return new RowCount(count, SOURCE_EXACT);
+        }
+
+        private static long countRows(SQLiteDatabase db, String table) {
+            return queryLong(db, "select count(*) from " + quoteIdentifier(table), null, 0L);
+        }
+
+        private static RowCount estimateRowCount(SQLiteDatabase db, String table) {
+            try {
+                Cursor cursor = db.rawQuery("select stat from sqlite_stat1 where tbl = ? order by idx is null desc",
+                        new String[]{table});
+                try {
+                    if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                        String stat = cursor.getString(0).trim();
+                        int end = stat.indexOf(' ');
+                        return new RowCount(Long.parseLong(end < 0 ? stat : stat.substring(0, end)), SOURCE_ESTIMATED);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } catch (SQLException | NumberFormatException e) {
+                // No statistics gathered yet.
+            }
+            try {
+                return new RowCount(queryLong(db, "select max(rowid) from " + quoteIdentifier(table), null, 0L),
+                        SOURCE_ESTIMATED);
+            } catch (SQLException e) {
+                // WITHOUT ROWID table.
+                return null;
+            }
+        }
+
+        static void onRowsInserted(SQLiteDatabase db, String table, long rowCount) {
+            if (isCached(db)) {
+                adjust(db, table, rowCount, !hasTriggers(db, table));
+            }
+        }
+
+        static void onRowsDeleted(SQLiteDatabase db, String table, long rowCount) {
+            if (isCached(db)) {
+                adjust(db, table, -rowCount, !hasTriggers(db, table) && !hasSelfReferencingForeignKey(db, table));
+            }
+        }
+
+        static void onRowsUpdated(SQLiteDatabase db, String table) {
+            if (isCached(db)) {
+                adjust(db, table, 0L, !hasTriggers(db, table));
+            }
+        }
+
+        private static synchronized boolean isCached(SQLiteDatabase db) {
+            return counts.containsKey(db);
+        }
+
+        static synchronized void invalidate(SQLiteDatabase db) {
+            if (db != null) {
+                counts.remove(db);
+            }
+        }
+
+        private static synchronized void adjust(SQLiteDatabase db, String table, long delta, boolean keepTable) {
+            CachedRowCounts cached = counts.get(db);
+            if (cached == null) {
+                return;
+            }
+            Long count = cached.tables.get(table);
+            cached.tables.clear();
+            if (count != null && keepTable) {
+                cached.tables.put(table, count + delta);
+            }
+        }
+
+        private static boolean hasTriggers(SQLiteDatabase db, String table) {
+            return queryLong(db, "select count(*) from sqlite_master where type = 'trigger' and tbl_name = ? collate nocase",
+                    new String[]{table}, 0L) > 0L;
+        }
+
+        /*
+         * Foreign key actions are not included in changes(), so deletes from such a table can remove
+         * more rows than reported.
+         */
+        private static boolean hasSelfReferencingForeignKey(SQLiteDatabase db, String table) {
+            Cursor cursor = db.rawQuery("pragma foreign_key_list(" + quoteIdentifier(table) + ")", null);
+            try {
+                int tableColumn = cursor.getColumnIndex("table");
+                while (cursor.moveToNext()) {
+                    if (table.equalsIgnoreCase(cursor.getString(tableColumn))) {
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private interface OnBackupProgressListener {
+        void onProgress(String method, long rowsCopied, long rowsTotal);
+        void onFinished(File file, String method, long durationMillis);
+        void onFailed(String error);
+    }
+
+    /*
+     * Consistent copy of a live database into the cache directory, made on a background thread with
+     * its own connections so neither the provider nor DatabaseOperationsThread waits for it. VACUUM
+     * INTO (SQLite 3.27) is used when available and no throttling is asked for. Otherwise the tables are
+     * copied in chunks of BACKUP_CHUNK_ROWS rows into a new database that attaches the source
+     * read-only, so the copy's transaction only holds a read snapshot of the source, with a pause
+     * after each chunk when throttled. Under WAL neither way blocks writers, but checkpoints cannot
+     * pass the snapshot until the backup ends. Backups are written under a temporary name and
+     * renamed when complete, so openFile() never serves a partial file.
+     */
+    private static class OnlineBackup {
+        private static final String BACKUP_DIRECTORY = "backups";
+        private static final String BACKUP_FILE_EXTENSION = ".db";
+        private static final int BACKUP_CHUNK_ROWS = 1000;
+        private static final int MAX_BACKUPS_PER_DATABASE = 3;
+        private static final ExecutorService backupExecutor = Executors.newSingleThreadExecutor();
+
+        /*
+         * The backup's signal is kept in activeOperations while it runs, so the caller can cancel it.
+         */
+        static void start(final File cacheDir, final String databasePath, final String databaseName,
+                          final long throttleMillis, final Set<CancellationSignal> activeOperations,
+                          final OnBackupProgressListener listener) {
+            final CancellationSignal signal = new CancellationSignal();
+            activeOperations.add(signal);
+            backupExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.currentTimeMillis();
+                    File directory = new File(cacheDir, BACKUP_DIRECTORY);
+                    File file = new File(directory, databaseName + "-" + start + BACKUP_FILE_EXTENSION);
+                    File temporaryFile = new File(directory, file.getName() + ".tmp");
+                    try {
+                        if (!directory.isDirectory() && !directory.mkdirs()) {
+                            throw new SQLException("Could not create " + directory);
+                        }
+                        String method = null;
+                        if (throttleMillis <= 0L && vacuumInto(databasePath, temporaryFile, listener)) {
+                            method = "vacuum into";
+                        }
+                        if (method == null) {
+                            copyInChunks(databasePath, temporaryFile, throttleMillis, signal, listener);
+                            method = "chunked copy";
+                        }
+                        if (!temporaryFile.renameTo(file)) {
+                            throw new SQLException("Could not rename " + temporaryFile);
+                        }
+                        deleteOldBackups(directory, databaseName);
+                        listener.onFinished(file, method, System.currentTimeMillis() - start);
+                    } catch (SQLException | OperationCanceledException e) {
+                        if (temporaryFile.exists() && !temporaryFile.delete()) {
+                            Log.d("SQLiteContentProvider", "Could not delete " + temporaryFile);
+                        }
+                        listener.onFailed(e instanceof OperationCanceledException ? "cancelled" : "Exception:" + e.toString());
+                    } finally {
+                        activeOperations.remove(signal);
+                    }
+                }
+            });
+        }
+
+        /*
+         * Returns the completed backup with the given name, or null when there is none. Names cannot
+         * point outside the backup directory.
+         */
+        static File getBackupFile(File cacheDir, String name) {
+            if (name == null || name.contains(File.separator) || !name.endsWith(BACKUP_FILE_EXTENSION)) {
+                return null;
+            }
+            File file = new File(new File(cacheDir, BACKUP_DIRECTORY), name);
+            return file.isFile() ? file : null;
+        }
+
+        private static boolean vacuumInto(String databasePath, File target, OnBackupProgressListener listener) {
+            SQLiteDatabase source = SQLiteDatabase.openDatabase(databasePath, null, SQLiteDatabase.OPEN_READONLY);
+            try {
+                listener.onProgress("vacuum into", 0L, -1L);
+                source.execSQL("vacuum into ?", new Object[]{target.getPath()});
+                return true;
+            } catch (SQLException e) {
+                // Older SQLite without VACUUM INTO, copied in chunks instead.
+                Log.d("SQLiteContentProvider", "Exception:" + e.toString());
+                if (target.exists() && !target.delete()) {
+                    Log.d("SQLiteContentProvider", "Could not delete " + target);
+                }
+                return false;
+            } finally {
+                source.close();
+            }
+        }
+
+        private static void copyInChunks(String databasePath, File target, long throttleMillis,
+                                         CancellationSignal signal, OnBackupProgressListener listener) {
+            SQLiteDatabase copy = SQLiteDatabase.openOrCreateDatabase(target, null);
+            try {
+                copy.execSQL("attach database ? as source", new Object[]{"file:" + databasePath + "?mode=ro"});
+                // Without URI filename support the name above is taken literally and a new, empty
+                // database is attached instead of the source.
+                Cursor cursor = copy.rawQuery("pragma database_list", null);
+                String attachedPath = null;
+                try {
+                    while (cursor.moveToNext()) {
+                        if ("source".equals(cursor.getString(1))) {
+                            attachedPath = cursor.getString(2);
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+                if (attachedPath == null || !new File(attachedPath).equals(new File(databasePath))) {
+                    throw new SQLException("Read-only attach is not supported, could not copy " + databasePath);
+                }
+
+                // The source is attached read-only so this takes only a read snapshot of it.
+                copy.beginTransactionNonExclusive();
+                try {
+                    copy.execSQL("pragma main.user_version = " + queryLong(copy, "pragma source.user_version", null, 0L));
+                    copy.execSQL("pragma main.application_id = " + queryLong(copy, "pragma source.application_id", null, 0L));
+
+                    List<String[]> schema = new ArrayList<>();
+                    cursor = copy.rawQuery("select type, name, sql from source.sqlite_master where sql is not null " +
+                            "and name not like 'sqlite\\_%' escape '\\' order by rowid", null);
+                    try {
+                        while (cursor.moveToNext()) {
+                            schema.add(new String[]{cursor.getString(0), cursor.getString(1), cursor.getString(2)});
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+
+                    // Virtual tables first, they create their own shadow tables.
+                    for (String[] entry : schema) {
+                        if (isVirtualTable(entry)) {
+                            copy.execSQL(entry[2]);
+                        }
+                    }
+                    List<String> tables = new ArrayList<>();
+                    List<String> shadowTables = new ArrayList<>();
+                    long rowsTotal = 0L;
+                    for (String[] entry : schema) {
+                        if (!entry[0].equals("table") || isVirtualTable(entry)) {
+                            continue;
+                        }
+                        if (queryLong(copy, "select count(*) from main.sqlite_master where name = ?", new String[]{entry[1]}, 0L) > 0L) {
+                            shadowTables.add(entry[1]);
+                        } else {
+                            copy.execSQL(entry[2]);
+                            tables.add(entry[1]);
+                            rowsTotal += queryLong(copy, "select count(*) from source." + quoteIdentifier(entry[1]), null, 0L);
+                        }
+                    }
+
+                    long rowsCopied = 0L;
+                    listener.onProgress("chunked copy", rowsCopied, rowsTotal);
+                    for (String table : tables) {
+                        rowsCopied = copyTable(copy, table, rowsCopied, rowsTotal, throttleMillis, signal, listener);
+                    }
+                    for (String table : shadowTables) {
+                        copy.execSQL("delete from main." + quoteIdentifier(table));
+                        copy.execSQL("insert into main." + quoteIdentifier(table) + " select * from source." + quoteIdentifier(table));
+                    }
+                    if (queryLong(copy, "select count(*) from source.sqlite_master where name = 'sqlite_sequence'", null, 0L) > 0L) {
+                        copy.execSQL("delete from main.sqlite_sequence");
+                        copy.execSQL("insert into main.sqlite_sequence select * from source.sqlite_sequence");
+                    }
+                    // Indexes, views and triggers last, so indexes are built once and triggers do not fire.
+                    for (String[] entry : schema) {
+                        if (!entry[0].equals("table")) {
+                            copy.execSQL(entry[2]);
+                        }
+                    }
+                    copy.setTransactionSuccessful();
+                } finally {
+                    copy.endTransaction();
+                }
+                copy.execSQL("detach database source");
+            } finally {
+                copy.close();
+            }
+        }
+
+        private static long copyTable(SQLiteDatabase copy, String table, long rowsCopied, long rowsTotal,
+                                      long throttleMillis, CancellationSignal signal, OnBackupProgressListener listener) {
+            String source = "source." + quoteIdentifier(table);
+            String target = "main." + quoteIdentifier(table);
+            String definition = null;
+            Cursor cursor = copy.rawQuery("select sql from source.sqlite_master where name = ?", new String[]{table});
+            try {
+                if (cursor.moveToFirst()) {
+                    definition = cursor.getString(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (definition != null && definition.toUpperCase(Locale.ROOT).matches("(?s).*WITHOUT\\s+ROWID.*")) {
+                // No rowid to page by, copied in a single statement.
+                copy.execSQL("insert into " + target + " select * from " + source);
+                return rowsCopied + queryLong(copy, "select count(*) from " + target, null, 0L);
+            }
+
+            long lastRowid = Long.MIN_VALUE;
+            while (true) {
+                signal.throwIfCanceled();
+                String[] from = {String.valueOf(lastRowid)};
+                long chunkEnd = queryLong(copy, "select max(rowid) from (select rowid from " + source +
+                        " where rowid > ? order by rowid limit " + BACKUP_CHUNK_ROWS + ")", from, Long.MIN_VALUE);
+                if (chunkEnd == Long.MIN_VALUE) {
+                    return rowsCopied;
+                }
+                copy.execSQL("insert into " + target + " select * from " + source + " where rowid > ? and rowid <= ?",
+                        new Object[]{lastRowid, chunkEnd});
+                rowsCopied += queryLong(copy, "select changes()", null, 0L);
+                lastRowid = chunkEnd;
+                listener.onProgress("chunked copy", rowsCopied, rowsTotal);
+                if (throttleMillis > 0L) {
+                    SystemClock.sleep(throttleMillis);
+                }
+            }
+        }
+
+        private static boolean isVirtualTable(String[] entry) {
+            return entry[0].equals("table") && entry[2].trim().toUpperCase(Locale.ROOT).startsWith("CREATE VIRTUAL");
+        }
+
+        private static void deleteOldBackups(File directory, String databaseName) {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                return;
+            }
+            // Only <databaseName>-<start>.db, a prefix match would also take foo-2-<start>.db for foo.
+            Pattern backupName = Pattern.compile(Pattern.quote(databaseName) + "-\\d+" + Pattern.quote(BACKUP_FILE_EXTENSION));
+            List<File> backups = new ArrayList<>();
+            for (File file : files) {
+                if (backupName.matcher(file.getName()).matches()) {
+                    backups.add(file);
+                }
+            }
+            Collections.sort(backups, new Comparator<File>() {
+                @Override
+                public int compare(File first, File second) {
+                    return Long.compare(second.lastModified(), first.lastModified());
+                }
+            });
+            for (int i = MAX_BACKUPS_PER_DATABASE; i < backups.size(); i++) {
+                if (!backups.get(i).delete()) {
+                    Log.d("SQLiteContentProvider", "Could not delete " + backups.get(i));
+                }
+            }
+        }
+    }
+
+    /*
+     * Full text shadow index over chosen text columns of a table, an external content FTS table that
+     * stores only the index and is kept in sync by triggers. fts5 with the trigram tokenizer (SQLite
+     * 3.34) is preferred because it answers LIKE '%term%' from the index, so such selections on the
+     * indexed columns are rewritten to use it. Its match is not quite LIKE: trigram folds Unicode case
+     * and ignores PRAGMA case_sensitive_like, while LIKE folds ASCII only. It finds every row LIKE
+     * would, so the rewrite keeps the original LIKE as a filter over those rows. Plain fts5 and fts4
+     * are built when trigram is not available but only match whole tokens, so selections are left
+     * alone for them.
+     * The table needs an INTEGER PRIMARY KEY, an implicit rowid may be renumbered by VACUUM and would
+     * leave the index pointing at the wrong rows.
+     */
+    private static class FtsShadowIndex {
+        private static final String FTS_TABLE_PREFIX = "_provider_fts_";
+        private static final String[] TRIGGER_SUFFIXES = {"_insert", "_delete", "_update", "_before_delete", "_before_update"};
+        private static final Pattern CONTENT_ROWID_PATTERN = Pattern.compile("content_rowid\\s*=\\s*'((?:[^']|'')*)'");
+        // Literals are matched possessively, so a quoted pattern is always taken whole and the ESCAPE
+        // check sees what really follows it rather than a shorter match ending at a doubled quote.
+        private static final Pattern LIKE_PREDICATE_PATTERN = Pattern.compile(
+                "(?<![\\w.])[\"`\\[]?(\\w+)[\"`\\]]?\\s+like\\s+(\\?|'(?:[^']|'')*+')(?!\\s*escape\\b)",
+                Pattern.CASE_INSENSITIVE);
+        private static final Pattern STRING_LITERAL_PATTERN = Pattern.compile("'(?:[^']|'')*+'");
+        private static final Pattern NAMED_PARAMETER_PATTERN = Pattern.compile("\\?\\d|[:@$]\\w");
+
+        /*
+         * Builds the index and returns the report rows: the FTS module used, the build time, the
+         * database growth and the number of sync triggers, which each write to the table pays for.
+         */
+        static List<String> create(SQLiteDatabase db, String table, String[] columns) {
+            List<String> indexColumns = new ArrayList<>();
+            String primaryKey = null;
+            int primaryKeyColumns = 0;
+            Cursor cursor = db.rawQuery("pragma table_info(" + quoteIdentifier(table) + ")", null);
+            try {
+                while (cursor.moveToNext()) {
+                    String name = cursor.getString(1);
+                    String type = cursor.getString(2) == null ? "" : cursor.getString(2).toUpperCase(Locale.ROOT);
+                    if (cursor.getInt(5) > 0) {
+                        primaryKeyColumns++;
+                        primaryKey = type.equals("INTEGER") ? name : null;
+                    } else if (columns == null && (type.contains("CHAR") || type.contains("CLOB") || type.contains("TEXT"))) {
+                        indexColumns.add(name);
+                    }
+                    if (columns != null && Arrays.asList(columns).contains(name)) {
+                        indexColumns.add(name);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            if (primaryKey == null || primaryKeyColumns != 1) {
+                throw new SQLException("FTS shadow index needs an INTEGER PRIMARY KEY on " + table);
+            }
+            if (indexColumns.isEmpty() || (columns != null && indexColumns.size() != columns.length)) {
+                throw new SQLException("No such text columns on " + table + ": " + Arrays.toString(columns));
+            }
+
+            String ftsTable = FTS_TABLE_PREFIX + table;
+            long start = System.currentTimeMillis();
+            long sizeBefore = getDatabaseSize(db);
+            String module = null;
+            db.beginTransaction();
+            try {
+                drop(db, table);
+                String columnList = joinColumns("", indexColumns);
+                String[] definitions = {
+                        "fts5(" + columnList + ", content=" + quoteLiteral(table) + ", content_rowid=" +
+                                quoteLiteral(primaryKey) + ", tokenize='trigram')",
+                        "fts5(" + columnList + ", content=" + quoteLiteral(table) + ", content_rowid=" +
+                                quoteLiteral(primaryKey) + ")",
+                        "fts4(" + columnList + ", content=" + quoteLiteral(table) + ")"};
+                for (String definition : definitions) {
+                    try {
+                        db.execSQL("create virtual table " + quoteIdentifier(ftsTable) + " using " + definition);
+                        module = definition.contains("trigram") ? "fts5 trigram" : definition.substring(0, 4);
+                        break;
+                    } catch (SQLException e) {
+                        Log.d("SQLiteContentProvider", "Exception:" + e.toString());
+                    }
+                }
+                if (module == null) {
+                    throw new SQLException("Neither fts5 nor fts4 is available");
+                }
+
+                String fts = quoteIdentifier(ftsTable);
+                String insert = "insert into " + fts + "(" + (module.equals("fts4") ? "docid" : "rowid") + ", " +
+                        columnList + ") values (new." + quoteIdentifier(primaryKey) + ", " + joinColumns("new.", indexColumns) + ");";
+                List<String> triggers = new ArrayList<>();
+                if (module.equals("fts4")) {
+                    // fts4 reads the old values from the content table, so they go before the change.
+                    String delete = "delete from " + fts + " where docid = old." + quoteIdentifier(primaryKey) + ";";
+                    triggers.add("_insert after insert on " + quoteIdentifier(table) + " begin " + insert + " end");
+                    triggers.add("_before_delete before delete on " + quoteIdentifier(table) + " begin " + delete + " end");
+                    triggers.add("_before_update before update on " + quoteIdentifier(table) + " begin " + delete + " end");
+                    triggers.add("_update after update on " + quoteIdentifier(table) + " begin " + insert + " end");
+                } else {
+                    String delete = "insert into " + fts + "(" + fts + ", rowid, " + columnList + ") values ('delete', old." +
+                            quoteIdentifier(primaryKey) + ", " + joinColumns("old.", indexColumns) + ");";
+                    triggers.add("_insert after insert on " + quoteIdentifier(table) + " begin " + insert + " end");
+                    triggers.add("_delete after delete on " + quoteIdentifier(table) + " begin " + delete + " end");
+                    triggers.add("_update after update on " + quoteIdentifier(table) + " begin " + delete + " " + insert + " end");
+                }
+                for (String trigger : triggers) {
+                    int nameEnd = trigger.indexOf(' ');
+                    db.execSQL("create trigger " + quoteIdentifier(ftsTable + trigger.substring(0, nameEnd)) +
+                            trigger.substring(nameEnd));
+                }
+                db.execSQL("insert into " + fts + "(" + fts + ") values ('rebuild')");
+                db.setTransactionSuccessful();
+
+                List<String> report = new ArrayList<>();
+                report.add("table:3,fts_table:3,module:3,columns:3,build_ms:1,bytes_added:1,triggers:1");
+                report.add(escapeValue(table) + "," +
+                        escapeValue(ftsTable) + "," +
+                        module + "," +
+                        escapeValue(joinColumns("", indexColumns).replace("\"", "").replace(", ", "|")) + "," +
+                        (System.currentTimeMillis() - start) + "," +
+                        (getDatabaseSize(db) - sizeBefore) + "," +
+                        triggers.size());
+                return report;
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        static void drop(SQLiteDatabase db, String table) {
+            String ftsTable = FTS_TABLE_PREFIX + table;
+            for (String suffix : TRIGGER_SUFFIXES) {
+                db.execSQL("drop trigger if exists " + quoteIdentifier(ftsTable + suffix));
+            }
+            db.execSQL("drop table if exists " + quoteIdentifier(ftsTable));
+        }
+
+        /*
+         * Rewrites "column LIKE ?" (or a quoted pattern) on an indexed column into a lookup in a trigram
+         * index followed by the original LIKE on the rows it finds. A placeholder becomes ?N, numbered
+         * as SQLite would number it, so both uses bind the same argument and the selection arguments
+         * are unchanged. Selections that already use numbered or named parameters are left as they are,
+         * as is anything else, including LIKE with an ESCAPE clause, which the index does not support.
+         */
+        static String rewriteSelection(SQLiteDatabase db, String table, String selection) {
+            if (table == null || selection == null || !selection.toLowerCase(Locale.ROOT).contains("like")) {
+                return selection;
+            }
+            String ftsTable = FTS_TABLE_PREFIX + table;
+            String definition = null;
+            Cursor cursor = db.rawQuery("select sql from sqlite_master where type = 'table' and name = ?",
+                    new String[]{ftsTable});
+            try {
+                if (cursor.moveToFirst()) {
+                    definition = cursor.getString(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (definition == null || !definition.toLowerCase(Locale.ROOT).contains("trigram")) {
+                return selection;
+            }
+            Matcher rowidMatcher = CONTENT_ROWID_PATTERN.matcher(definition);
+            if (!rowidMatcher.find()) {
+                return selection;
+            }
+            String primaryKey = rowidMatcher.group(1).replace("''", "'");
+
+            Set<String> indexedColumns = new LinkedHashSet<>();
+            cursor = db.rawQuery("pragma table_info(" + quoteIdentifier(ftsTable) + ")", null);
+            try {
+                while (cursor.moveToNext()) {
+                    indexedColumns.add(cursor.getString(1).toLowerCase(Locale.ROOT));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (NAMED_PARAMETER_PATTERN.matcher(STRING_LITERAL_PATTERN.matcher(selection).replaceAll("''")).find()) {
+                return selection;
+            }
+
+            Matcher matcher = LIKE_PREDICATE_PATTERN.matcher(selection);
+            StringBuffer rewritten = new StringBuffer();
+            while (matcher.find()) {
+                String column = matcher.group(1);
+                String replacement = matcher.group();
+                String preceding = STRING_LITERAL_PATTERN.matcher(selection.substring(0, matcher.start())).replaceAll("");
+                // A match inside a string literal leaves an odd quote behind.
+                if (indexedColumns.contains(column.toLowerCase(Locale.ROOT)) && preceding.indexOf('\'') < 0) {
+                    String pattern = matcher.group(2);
+                    if (pattern.equals("?")) {
+                        int parameter = 1;
+                        for (int i = 0; i < preceding.length(); i++) {
+                            if (preceding.charAt(i) == '?') {
+                                parameter++;
+                            }
+                        }
+                        pattern = "?" + parameter;
+                    }
+                    replacement = "(" + quoteIdentifier(primaryKey) + " in (select rowid from " + quoteIdentifier(ftsTable) +
+                            " where " + quoteIdentifier(column) + " like " + pattern + ") and " +
+                            quoteIdentifier(column) + " like " + pattern + ")";
+                }
+                matcher.appendReplacement(rewritten, Matcher.quoteReplacement(replacement));
+            }
+            matcher.appendTail(rewritten);
+            return rewritten.toString();
+        }
+
+        private static String joinColumns(String prefix, List<String> columns) {
+            StringBuilder list = new StringBuilder();
+            for (String column : columns) {
+                if (list.length() > 0) {
+                    list.append(", ");
+                }
+                list.append(prefix).append(quoteIdentifier(column));
+            }
+            return list.toString();
+        }
+
+        private static long getDatabaseSize(SQLiteDatabase db) {
+            return queryLong(db, "pragma page_count", null, 0L) * queryLong(db, "pragma page_size", null, 0L);
+        }
+    }
+
+    /*
+     * Lightweight workload recorder and index advisor. Structured queries are grouped by shape (table,
+     * projection, selection with literals replaced by '?', sort order) with their execution count and
+     * total time. The costliest shapes are checked with EXPLAIN QUERY PLAN and, where the plan shows a
+     * full scan or a temporary b-tree for ORDER BY, an index is suggested on the equality columns, then
+     * one range column, then the sort columns, extended to cover a small projection. Verification
+     * copies the table and its indexes into a scratch database next to the live one, so the live
+     * database only serves a read, then runs the last sampled query there with and without the
+     * suggested index, stepping through every row. It is refused while a transaction is open on the
+     * connection, whose locks could keep the copy from reading, and skipped for tables over
+     * MAX_VERIFY_ROWS rows. Shapes are held in memory
+     * and the provider and the service run in separate processes, so each records only its own path:
+     * the getIndexSuggestions call covers queries made through the provider and the indexAdvice
+     * operation covers those made through the service. A client using both asks both.
+     */
+    private static class IndexAdvisor {
+        private static final int MAX_SHAPES = 200;
+        private static final int MAX_SUGGESTIONS = 10;
+        private static final int MAX_INDEX_COLUMNS = 6;
+        private static final int MAX_VERIFY_ROWS = 100000;
+        private static final String VERIFY_DATABASE_SUFFIX = "-index-verify";
+        private static final Pattern STRING_LITERAL_PATTERN = Pattern.compile("'(?:[^']|'')*'");
+        private static final Pattern NUMERIC_LITERAL_PATTERN = Pattern.compile("(?<![\\w.])-?\\d+(?:\\.\\d+)?(?![\\w.])");
+        private static final Pattern EQUALITY_PREDICATE_PATTERN = Pattern.compile(
+                "[\"`\\[]?(\\w+)[\"`\\]]?\\s*(?:==?|\\bis\\b|\\bin\\b)", Pattern.CASE_INSENSITIVE);
+        private static final Pattern RANGE_PREDICATE_PATTERN = Pattern.compile(
+                "[\"`\\[]?(\\w+)[\"`\\]]?\\s*(?:<|>|\\bbetween\\b|\\blike\\b|\\bglob\\b)", Pattern.CASE_INSENSITIVE);
+
+        private static final Map<String, QueryShape> shapes = new HashMap<>();
+
+        private static class QueryShape {
+            final String dbPath;
+            final String table;
+            final String[] projection;
+            final String selection;
+            final String sortOrder;
+            long executions;
+            long totalNanos;
+            String sampleSelection;
+            String[] sampleSelectionArgs;
+
+            QueryShape(String dbPath, String table, String[] projection, String selection, String sortOrder) {
+                this.dbPath = dbPath;
+                this.table = table;
+                this.projection = projection;
+                this.selection = selection;
+                this.sortOrder = sortOrder;
+            }
+
+            QueryShape copy() {
+                QueryShape copy = new QueryShape(dbPath, table, projection, selection, sortOrder);
+                copy.executions = executions;
+                copy.totalNanos = totalNanos;
+                copy.sampleSelection = sampleSelection;
+                copy.sampleSelectionArgs = sampleSelectionArgs;
+                return copy;
+            }
+        }
+
+        static synchronized void record(SQLiteDatabase db, String table, String[] projection, String selection,
+                                        String[] selectionArgs, String sortOrder, long durationNanos) {
+            if (table == null || table.startsWith("_provider_") || (selection == null && sortOrder == null)) {
+                return;
+            }
+            String selectionShape = selection == null ? null : normalise(selection);
+            String key = db.getPath() + "|" + table + "|" + Arrays.toString(projection) + "|" +
+                    selectionShape + "|" + sortOrder;
+            QueryShape shape = shapes.get(key);
+            if (shape == null) {
+                if (shapes.size() >= MAX_SHAPES) {
+                    evictCheapestShape();
+                }
+                shape = new QueryShape(db.getPath(), table, projection, selectionShape, sortOrder);
+                shapes.put(key, shape);
+            }
+            shape.executions++;
+            shape.totalNanos += durationNanos;
+            shape.sampleSelection = selection;
+            shape.sampleSelectionArgs = selectionArgs;
+        }
+
+        /*
+         * Rows in the query result format: rank, table, executions, total_ms, plan, suggestion and the
+         * measured speed-up when verified.
+         */
+        static List<String> getSuggestions(SQLiteDatabase db, boolean verify) {
+            List<QueryShape> candidates = new ArrayList<>();
+            synchronized (IndexAdvisor.class) {
+                for (QueryShape shape : shapes.values()) {
+                    if (shape.dbPath.equals(db.getPath())) {
+                        // record() keeps adding to the originals, sorting them could break the comparator.
+                        candidates.add(shape.copy());
+                    }
+                }
+            }
+            Collections.sort(candidates, new Comparator<QueryShape>() {
+                @Override
+                public int compare(QueryShape first, QueryShape second) {
+                    return Long.compare(second.totalNanos, first.totalNanos);
+                }
+            });
+
+            List<String> rows = new ArrayList<>();
+            rows.add("rank:1,table:3,executions:1,total_ms:1,plan:3,suggestion:3,speedup:3");
+            Set<String> suggested = new LinkedHashSet<>();
+            for (QueryShape shape : candidates) {
+                if (suggested.size() >= MAX_SUGGESTIONS) {
+                    break;
+                }
+                try {
+                    String plan = explain(db, shape);
+                    if (!plan.contains("TEMP B-TREE FOR ORDER BY") && !isFullScan(plan)) {
+                        continue;
+                    }
+                    List<String> columns = getIndexColumns(db, shape);
+                    if (columns.isEmpty()) {
+                        continue;
+                    }
+                    String suggestion = buildCreateIndex(shape.table, columns);
+                    if (!suggested.add(suggestion)) {
+                        continue;
+                    }
+                    String speedup = verify ? verify(db, shape, suggestion) : null;
+                    rows.add(suggested.size() + "," +
+                            escapeValue(shape.table) + "," +
+                            shape.executions + "," +
+                            shape.totalNanos / 1000000L + "," +
+                            escapeValue(plan) + "," +
+                            escapeValue(suggestion) + "," +
+                            escapeValue(speedup));
+                } catch (SQLException e) {
+                    Log.d("SQLiteContentProvider", "Exception:" + e.toString());
+                }
+            }
+            return rows;
+        }
+
+        private static void evictCheapestShape() {
+            String cheapest = null;
+            long cheapestNanos = Long.MAX_VALUE;
+            for (Map.Entry<String, QueryShape> entry : shapes.entrySet()) {
+                if (entry.getValue().totalNanos < cheapestNanos) {
+                    cheapest = entry.getKey();
+                    cheapestNanos = entry.getValue().totalNanos;
+                }
+            }
+            shapes.remove(cheapest);
+        }
+
+        private static String normalise(String selection) {
+            String shape = STRING_LITERAL_PATTERN.matcher(selection).replaceAll("?");
+            shape = NUMERIC_LITERAL_PATTERN.matcher(shape).replaceAll("?");
+            return shape.replaceAll("\\s+", " ").trim();
+        }
+
+        private static String buildQuery(QueryShape shape, String selection) {
+            StringBuilder query = new StringBuilder("select ");
+            if (shape.projection == null || shape.projection.length == 0) {
+                query.append("*");
+            } else {
+                for (int i = 0; i < shape.projection.length; i++) {
+                    if (i > 0) {
+                        query.append(", ");
+                    }
+                    query.append(shape.projection[i]);
+                }
+            }
+            query.append(" from ").append(quoteIdentifier(shape.table));
+            if (selection != null) {
+                query.append(" where ").append(selection);
+            }
+            if (shape.sortOrder != null) {
+                query.append(" order by ").append(shape.sortOrder);
+            }
+            return query.toString();
+        }
+
+        private static String explain(SQLiteDatabase db, QueryShape shape) {
+            int parameters = 0;
+            if (shape.selection != null) {
+                for (int i = 0; i < shape.selection.length(); i++) {
+                    if (shape.selection.charAt(i) == '?') {
+                        parameters++;
+                    }
+                }
+            }
+            // Android requires every parameter to be bound, the values do not affect the plan shape.
+            String[] arguments = new String[parameters];
+            Arrays.fill(arguments, "");
+
+            StringBuilder plan = new StringBuilder();
+            Cursor cursor = db.rawQuery("explain query plan " + buildQuery(shape, shape.selection), arguments);
+            try {
+                int detailColumn = cursor.getColumnIndex("detail");
+                while (cursor.moveToNext()) {
+                    if (plan.length() > 0) {
+                        plan.append("; ");
+                    }
+                    plan.append(cursor.getString(detailColumn));
+                }
+            } finally {
+                cursor.close();
+            }
+            return plan.toString();
+        }
+
+        private static boolean isFullScan(String plan) {
+            for (String step : plan.split("; ")) {
+                if (step.startsWith("SCAN") && !step.contains(" USING ")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static List<String> getIndexColumns(SQLiteDatabase db, QueryShape shape) {
+            Set<String> tableColumns = new LinkedHashSet<>();
+            Cursor cursor = db.rawQuery("pragma table_info(" + quoteIdentifier(shape.table) + ")", null);
+            try {
+                while (cursor.moveToNext()) {
+                    tableColumns.add(cursor.getString(1).toLowerCase(Locale.ROOT));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            Set<String> columns = new LinkedHashSet<>();
+            if (shape.selection != null) {
+                addMatchingColumns(EQUALITY_PREDICATE_PATTERN, shape.selection, tableColumns, columns, Integer.MAX_VALUE);
+                addMatchingColumns(RANGE_PREDICATE_PATTERN, shape.selection, tableColumns, columns, 1);
+            }
+            if (shape.sortOrder != null) {
+                for (String term : shape.sortOrder.split(",")) {
+                    String column = term.trim().split("\\s+")[0].replaceAll("[\"`\\[\\]]", "").toLowerCase(Locale.ROOT);
+                    if (tableColumns.contains(column)) {
+                        columns.add(column);
+                    }
+                }
+            }
+            if (shape.projection != null && !columns.isEmpty()) {
+                Set<String> covering = new LinkedHashSet<>(columns);
+                for (String column : shape.projection) {
+                    String name = column.trim().replaceAll("[\"`\\[\\]]", "").toLowerCase(Locale.ROOT);
+                    if (!tableColumns.contains(name)) {
+                        covering = null;
+                        break;
+                    }
+                    covering.add(name);
+                }
+                if (covering != null && covering.size() <= MAX_INDEX_COLUMNS) {
+                    columns = covering;
+                }
+            }
+            return new ArrayList<>(columns);
+        }
+
+        private static void addMatchingColumns(Pattern pattern, String selection, Set<String> tableColumns,
+                                               Set<String> columns, int limit) {
+            Matcher matcher = pattern.matcher(selection);
+            int added = 0;
+            while (matcher.find() && added < limit) {
+                String column = matcher.group(1).toLowerCase(Locale.ROOT);
+                if (tableColumns.contains(column) && columns.add(column)) {
+                    added++;
+                }
+            }
+        }
+
+        private static String buildCreateIndex(String table, List<String> columns) {
+            StringBuilder name = new StringBuilder("idx_").append(table);
+            StringBuilder list = new StringBuilder();
+            for (String column : columns) {
+                name.append("_").append(column);
+                if (list.length() > 0) {
+                    list.append(", ");
+                }
+                list.append(quoteIdentifier(column));
+            }
+            return "create index " + quoteIdentifier(name.toString()) + " on " + quoteIdentifier(table) +
+                    " (" + list + ")";
+        }
+
+        private static String verify(SQLiteDatabase db, QueryShape shape, String createIndex) {
+            if (db.inTransaction()) {
+                return "skipped: transaction open";
+            }
+            // Counting stops one past the bound, so a large table is not scanned to find it is large.
+            if (queryLong(db, "select count(*) from (select 1 from " + quoteIdentifier(shape.table) +
+                    " limit " + (MAX_VERIFY_ROWS + 1) + ")", null, 0L) > MAX_VERIFY_ROWS) {
+                return "skipped: more than " + MAX_VERIFY_ROWS + " rows";
+            }
+            String tableSql = null;
+            List<String> indexSql = new ArrayList<>();
+            Cursor cursor = db.rawQuery("select type, sql from sqlite_master where tbl_name = ? and sql is not null " +
+                    "and type in ('table', 'index')", new String[]{shape.table});
+            try {
+                while (cursor.moveToNext()) {
+                    if (cursor.getString(0).equals("table")) {
+                        tableSql = cursor.getString(1);
+                    } else {
+                        indexSql.add(cursor.getString(1));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            if (tableSql == null || tableSql.trim().toUpperCase(Locale.ROOT).startsWith("CREATE VIRTUAL")) {
+                return "skipped: not an ordinary table";
+            }
+            // Plans follow the statistics, so the copy is analysed when the live database is.
+            boolean analyzed = queryLong(db, "select count(*) from sqlite_master where name = 'sqlite_stat1'",
+                    null, 0L) > 0L;
+
+            File scratchFile = new File(db.getPath() + VERIFY_DATABASE_SUFFIX);
+            SQLiteDatabase.deleteDatabase(scratchFile);
+            SQLiteDatabase scratch = SQLiteDatabase.openOrCreateDatabase(scratchFile, null);
+            try {
+                scratch.execSQL(tableSql);
+                scratch.execSQL("attach database ? as source", new Object[]{db.getPath()});
+                try {
+                    scratch.execSQL("insert into main." + quoteIdentifier(shape.table) +
+                            " select * from source." + quoteIdentifier(shape.table));
+                } finally {
+                    scratch.execSQL("detach database source");
+                }
+                for (String index : indexSql) {
+                    scratch.execSQL(index);
+                }
+                if (analyzed) {
+                    scratch.execSQL("analyze");
+                }
+
+                String query = buildQuery(shape, shape.sampleSelection);
+                long before = timeQuery(scratch, query, shape.sampleSelectionArgs);
+                scratch.execSQL(createIndex);
+                if (analyzed) {
+                    scratch.execSQL("analyze");
+                }
+                long after = timeQuery(scratch, query, shape.sampleSelectionArgs);
+                return String.format(Locale.ROOT, "%.1fx (%d ms -> %d ms)",
+                        after == 0L ? 0.0 : (double) before / after, before / 1000000L, after / 1000000L);
+            } finally {
+                scratch.close();
+                SQLiteDatabase.deleteDatabase(scratchFile);
+            }
+        }
+
+        /*
+         * Times the statement itself, a count(*) wrapper would let SQLite drop the ORDER BY and plan it
+         * differently. getCount() steps it through every row once while filling the first window.
+         */
+        private static long timeQuery(SQLiteDatabase db, String query, String[] selectionArgs) {
+            long start = System.nanoTime();
+            Cursor cursor = db.rawQuery(query, selectionArgs);
+            try {
+                cursor.getCount();
+            } finally {
+                cursor.close();
             }
+            return System.nanoTime() - start;
         }
     }
 
@@ -199,13 +1779,55 @@ public class SQLiteContentProvider extends ContentProvider {
         private static final String SQL_TYPE_TRANSACTION = "transaction";
         private static final String SQL_TYPE_CLOSE_DATABASE = "closeDatabaseConnection";
         private static final String SQL_TYPE_IN_TRANSACTION = "inTransaction";
-
-        private static CancellationSignal cancellationSignal = new CancellationSignal();
+        // Returns the report of the last idle maintenance pass. sql "run" schedules a pass as
+        // soon as the queue is idle rather than waiting for the idle delay.
+        private static final String SQL_TYPE_MAINTENANCE = "maintenance";
+        // sql "enable", "disable" or "compact" change tracking for the table named in object.
+        // Returns the current change version.
+        private static final String SQL_TYPE_CHANGE_TRACKING = "changeTracking";
+        // Rows of the table named in object changed after the version passed in sql. Returns the
+        // current change version, to be passed in the next request, followed by the changed rows.
+        private static final String SQL_TYPE_CHANGES_SINCE = "changesSince";
+        // Queue depth and wait time statistics for each scheduler priority class.
+        private static final String SQL_TYPE_SCHEDULER_STATS = "schedulerStats";
+        // Tables, views, columns, indexes and triggers of the database in a single result.
+        private static final String SQL_TYPE_SCHEMA = "schema";
+        // Row count of the table named in object, sql "approximate" allows an estimate. Returns the
+        // count and whether it is exact, cached (exact) or estimated.
+        private static final String SQL_TYPE_ROW_COUNT = "rowCount";
+        // Ranked index suggestions for the structured queries run through this service, sql "verify"
+        // measures each suggestion on a scratch copy of its table.
+        private static final String SQL_TYPE_INDEX_ADVICE = "indexAdvice";
+        // Searches every column of every table for the term in sql, or only the table named in object.
+        // projection names further databases to search, or "*" for all of them, and limitEndPosition
+        // caps the number of matches. Matches are streamed with operationResult "partial", the final
+        // result carries the number of matches.
+        private static final String SQL_TYPE_SEARCH = "search";
+        // sql "create" builds an FTS shadow index over the projection columns (all text columns when
+        // null) of the table named in object and returns its build report, sql "drop" removes it.
+        private static final String SQL_TYPE_FTS_INDEX = "ftsIndex";
+        // Backs up the database to the cache directory without blocking this worker, sql is an
+        // optional pause in milliseconds after each chunk of rows. Progress is streamed with
+        // operationResult "progress", the final result gives the content:// uri of the backup.
+        private static final String SQL_TYPE_BACKUP = "backup";
+
+        private static final int BATCH_YIELD_ROWS = 500;
+        private static final int SEARCH_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        private static final int SEARCH_DEFAULT_MAX_MATCHES = 1000;
+        private static final ExecutorService searchExecutor = Executors.newFixedThreadPool(SEARCH_THREADS);
+
+        private volatile CancellationSignal cancellationSignal = new CancellationSignal();
         private static String dbPath;
-        private static SQLiteDatabase db;
+        // Per service instance, so an instance created for SQLiteContentProviderLoadTest never shares
+        // the connection, cancellation, change notification holds or maintenance state of the
+        // instance clients are bound to.
+        private SQLiteDatabase db;
+        private final Set<CancellationSignal> backgroundOperations =
+                Collections.synchronizedSet(new LinkedHashSet<CancellationSignal>());
         private DatabaseOperationsThread databaseOperationsThread;
+        private final QueryCoalescer queryCoalescer = new QueryCoalescer();
         private static final String KEY_AIDL_CALLBACK_LIST = "aidl_callback_list";
-        private static ContentProviderAidlCallback aidlCallback;
+        private ChangeNotifier changeNotifier;
 
         @Override
         public void onCreate() {
@@ -213,18 +1835,19 @@ public class SQLiteContentProvider extends ContentProvider {
             super.onCreate();
             dbPath = getApplicationInfo().dataDir + INTERNAL_DB_DIRECTORY;
             sharedPreferences = getApplicationContext().getSharedPreferences(SHARED_PREF, Context.MODE_PRIVATE);
+            changeNotifier = new ChangeNotifier(getContentResolver());
 
             if (databaseOperationsThread == null || !databaseOperationsThread.isAlive()) {
-                databaseOperationsThread = new DatabaseOperationsThread();
+                databaseOperationsThread = new DatabaseOperationsThread(this);
                 databaseOperationsThread.start();
             }
 
             ObservableAidlCallbackList.setOnAidlCallbackListChangedListener(new OnAidlReturnValueChangedListener() {
                 @Override
-                public void onAidlReturnValueChanged(List<String> list) {
-                    if (aidlCallback != null) {
+                public void onAidlReturnValueChanged(ContentProviderAidlCallback callback, List<String> list) {
+                    if (callback != null) {
                         try {
-                            aidlCallback.aidlInterfaceCallback(list);
+                            callback.aidlInterfaceCallback(list);
                         } catch (RemoteException e) {
                             Log.d("SQLiteContentProvider", "Exception:" + e.toString() + "\n" +
                                     Arrays.toString(Thread.currentThread().getStackTrace()).replace(',', '\n'));
@@ -235,7 +1858,7 @@ public class SQLiteContentProvider extends ContentProvider {
         }
 
         private interface OnAidlReturnValueChangedListener {
-            void onAidlReturnValueChanged(List<String> list);
+            void onAidlReturnValueChanged(ContentProviderAidlCallback callback, List<String> list);
         }
 
         private static class ObservableAidlCallbackList {
@@ -245,15 +1868,208 @@ public class SQLiteContentProvider extends ContentProvider {
                 listener = pListener;
             }
 
-            static void setAidlCallbackList(List<String> aidlCallbackList) {
+            static void setAidlCallbackList(ContentProviderAidlCallback callback, List<String> aidlCallbackList) {
                 if (listener != null)
-                    listener.onAidlReturnValueChanged(aidlCallbackList);
+                    listener.onAidlReturnValueChanged(callback, aidlCallbackList);
+            }
+        }
+
+        private interface PrioritizedOperation extends Runnable {
+            int getPriority();
+            boolean isWrite();
+            boolean beginsTransaction();
+            boolean endsTransaction();
+            boolean closesDatabase();
+        }
+
+        /*
+         * Replaces the FIFO order of the Looper with one queue per priority class. The highest
+         * priority class with a runnable head goes first, unless the head of a lower class has waited
+         * past its starvation threshold. Every client shares the one connection, so the order only
+         * changes where no result can tell: reads are reordered among other reads and around
+         * maintenance, but nothing passes a write (including DDL and transaction control) queued
+         * before it and a write passes nothing queued before it. Reads queued inside a transaction,
+         * tracked by nesting depth, also keep their order among themselves.
+         */
+        private static class OperationScheduler {
+            static final int PRIORITY_INTERACTIVE = 0;
+            static final int PRIORITY_NORMAL = 1;
+            static final int PRIORITY_BULK = 2;
+            static final int PRIORITY_MAINTENANCE = 3;
+            private static final String[] PRIORITY_NAMES = {"interactive", "normal", "bulk", "maintenance"};
+            private static final long[] STARVATION_THRESHOLD_MS = {Long.MAX_VALUE, 500L, 2000L, Long.MAX_VALUE};
+
+            private final List<ArrayDeque<QueuedOperation>> queues = new ArrayList<>();
+            private final long[] dispatchedCount = new long[PRIORITY_NAMES.length];
+            private final long[] totalWaitMillis = new long[PRIORITY_NAMES.length];
+            private final long[] maxWaitMillis = new long[PRIORITY_NAMES.length];
+            private final int[] maxQueueDepth = new int[PRIORITY_NAMES.length];
+            private final long[] coalescedCount = new long[PRIORITY_NAMES.length];
+            private long nextSequence;
+            private int transactionDepth;
+
+            OperationScheduler() {
+                for (int i = 0; i < PRIORITY_NAMES.length; i++) {
+                    queues.add(new ArrayDeque<QueuedOperation>());
+                }
+            }
+
+            synchronized void enqueue(PrioritizedOperation operation) {
+                if (operation.beginsTransaction()) {
+                    transactionDepth++;
+                }
+                boolean ordered = operation.isWrite() || transactionDepth > 0;
+                if (operation.endsTransaction() && transactionDepth > 0) {
+                    transactionDepth--;
+                }
+                if (operation.closesDatabase()) {
+                    transactionDepth = 0;
+                }
+
+                int priority = operation.getPriority();
+                ArrayDeque<QueuedOperation> queue = queues.get(priority);
+                queue.addLast(new QueuedOperation(operation, nextSequence++, ordered));
+                maxQueueDepth[priority] = Math.max(maxQueueDepth[priority], queue.size());
+            }
+
+            synchronized QueuedOperation next() {
+                long now = SystemClock.uptimeMillis();
+                int selected = -1;
+                for (int priority = 0; priority < queues.size() && selected < 0; priority++) {
+                    QueuedOperation head = queues.get(priority).peekFirst();
+                    if (head != null && now - head.enqueueTime >= STARVATION_THRESHOLD_MS[priority] &&
+                            isRunnable(head, null)) {
+                        selected = priority;
+                    }
+                }
+                for (int priority = 0; priority < queues.size() && selected < 0; priority++) {
+                    QueuedOperation head = queues.get(priority).peekFirst();
+                    if (head != null && isRunnable(head, null)) {
+                        selected = priority;
+                    }
+                }
+                if (selected < 0) {
+                    return null;
+                }
+
+                QueuedOperation next = queues.get(selected).pollFirst();
+                long waitMillis = now - next.enqueueTime;
+                dispatchedCount[selected]++;
+                totalWaitMillis[selected] += waitMillis;
+                maxWaitMillis[selected] = Math.max(maxWaitMillis[selected], waitMillis);
+                return next;
+            }
+
+            /*
+             * Puts a partially completed operation back at the head of its class, keeping its place in
+             * the write order.
+             */
+            synchronized void requeue(QueuedOperation operation) {
+                operation.enqueueTime = SystemClock.uptimeMillis();
+                queues.get(operation.operation.getPriority()).addFirst(operation);
+            }
+
+            synchronized void recordCoalesced(int priority) {
+                coalescedCount[priority]++;
+            }
+
+            synchronized boolean hasRunnableWorkAbove(QueuedOperation running) {
+                for (int priority = 0; priority < running.operation.getPriority(); priority++) {
+                    QueuedOperation head = queues.get(priority).peekFirst();
+                    if (head != null && isRunnable(head, running)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            synchronized List<String> getStatistics() {
+                List<String> rows = new ArrayList<>();
+                rows.add("class:3,queue_depth:1,max_queue_depth:1,dispatched:1,coalesced:1,avg_wait_ms:1,max_wait_ms:1");
+                for (int priority = 0; priority < PRIORITY_NAMES.length; priority++) {
+                    rows.add(PRIORITY_NAMES[priority] + "," +
+                            queues.get(priority).size() + "," +
+                            maxQueueDepth[priority] + "," +
+                            dispatchedCount[priority] + "," +
+                            coalescedCount[priority] + "," +
+                            (dispatchedCount[priority] == 0 ? 0 : totalWaitMillis[priority] / dispatchedCount[priority]) + "," +
+                            maxWaitMillis[priority]);
+                }
+                return rows;
+            }
+
+            private boolean isRunnable(QueuedOperation candidate, QueuedOperation running) {
+                if (running != null && mustFollow(candidate, running)) {
+                    return false;
+                }
+                for (ArrayDeque<QueuedOperation> queue : queues) {
+                    for (QueuedOperation queued : queue) {
+                        if (mustFollow(candidate, queued)) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+
+            private static boolean mustFollow(QueuedOperation candidate, QueuedOperation earlier) {
+                if (earlier.sequence >= candidate.sequence ||
+                        earlier.operation.getPriority() == PRIORITY_MAINTENANCE) {
+                    return false;
+                }
+                return earlier.operation.isWrite() || candidate.operation.isWrite() ||
+                        (earlier.ordered && candidate.ordered);
+            }
+        }
+
+        private static class QueuedOperation {
+            final PrioritizedOperation operation;
+            final long sequence;
+            final boolean ordered;
+            long enqueueTime = SystemClock.uptimeMillis();
+
+            QueuedOperation(PrioritizedOperation operation, long sequence, boolean ordered) {
+                this.operation = operation;
+                this.sequence = sequence;
+                this.ordered = ordered;
             }
         }
 
         private static class DatabaseOperationsThread extends Thread {
             Handler operationsHandler;
             Looper looper;
+            private final ContentProviderAidlService service;
+            private final AtomicInteger pendingOperations = new AtomicInteger();
+            private final OperationScheduler scheduler = new OperationScheduler();
+            private final DatabaseMaintenance maintenance = new DatabaseMaintenance(this);
+            private QueuedOperation runningOperation;
+
+            DatabaseOperationsThread(ContentProviderAidlService service) {
+                this.service = service;
+            }
+
+            private final Runnable dispatcher = new Runnable() {
+                @Override
+                public void run() {
+                    QueuedOperation next = scheduler.next();
+                    if (next != null) {
+                        runningOperation = next;
+                        try {
+                            next.operation.run();
+                        } finally {
+                            runningOperation = null;
+                        }
+                    }
+                }
+            };
+
+            private final Runnable maintenanceTrigger = new Runnable() {
+                @Override
+                public void run() {
+                    maintenance.reset();
+                    addOperationToQueue(maintenance);
+                }
+            };
 
             @Override
             public void run() {
@@ -267,6 +2083,7 @@ public class SQLiteContentProvider extends ContentProvider {
                         Bundle bundle = msg.getData();
                         if (bundle.containsKey(KEY_AIDL_CALLBACK_LIST)) {
                             ObservableAidlCallbackList.setAidlCallbackList(
+                                    (ContentProviderAidlCallback) msg.obj,
                                     bundle.getStringArrayList(KEY_AIDL_CALLBACK_LIST));
                         }
                     }
@@ -274,12 +2091,587 @@ public class SQLiteContentProvider extends ContentProvider {
                 Looper.loop();
             }
 
-            public void addOperationToQueue(Runnable operation) {
-                operationsHandler.post(operation);
+            public void addOperationToQueue(PrioritizedOperation operation) {
+                if (operation.getPriority() != OperationScheduler.PRIORITY_MAINTENANCE) {
+                    pendingOperations.incrementAndGet();
+                    maintenance.cancel();
+                }
+                scheduler.enqueue(operation);
+                operationsHandler.post(dispatcher);
+            }
+
+            /*
+             * Called by long running operations between chunks of work. Returns true when the
+             * operation has been put back on the queue because higher priority work is waiting, in
+             * which case the caller should return and will be run again to continue.
+             */
+            boolean yieldToWaitingOperations() {
+                QueuedOperation running = runningOperation;
+                if (running != null && scheduler.hasRunnableWorkAbove(running)) {
+                    scheduler.requeue(running);
+                    operationsHandler.post(dispatcher);
+                    return true;
+                }
+                return false;
+            }
+
+            void onOperationFinished(long delayMillis) {
+                if (pendingOperations.decrementAndGet() == 0) {
+                    operationsHandler.removeCallbacks(maintenanceTrigger);
+                    operationsHandler.postDelayed(maintenanceTrigger, delayMillis);
+                }
+            }
+
+            boolean hasPendingOperations() {
+                return pendingOperations.get() > 0;
+            }
+
+            List<String> getSchedulerStatistics() {
+                return scheduler.getStatistics();
+            }
+
+            void recordCoalescedOperation(int priority) {
+                scheduler.recordCoalesced(priority);
+            }
+        }
+
+        /*
+         * Housekeeping for the service connection that only runs while the operations queue is
+         * idle. Each pass is split into small steps queued at maintenance priority, every step
+         * first checking that no user operation has been queued since. A queued operation also
+         * cancels any pragma that is mid-flight, so user work never waits on maintenance for long.
+         */
+        private static class DatabaseMaintenance implements PrioritizedOperation {
+            static final long IDLE_DELAY_MS = 5000L;
+            private static final long WAL_PASSIVE_CHECKPOINT_BYTES = 4L * 1024 * 1024;
+            private static final long WAL_TRUNCATE_CHECKPOINT_BYTES = 32L * 1024 * 1024;
+            private static final long OPTIMIZE_ROWS_CHANGED_THRESHOLD = 1000L;
+            private static final int INCREMENTAL_VACUUM_PAGES = 128;
+            private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+            private static final int STEP_CHECKPOINT = 0;
+            private static final int STEP_OPTIMIZE = 1;
+            private static final int STEP_INCREMENTAL_VACUUM = 2;
+            private static final int STEP_COMPACT_CHANGE_LOG = 3;
+            private static final int STEP_DONE = 4;
+
+            private volatile boolean schemaChanged;
+            private volatile long rowsChanged;
+            private List<String> lastReport = new ArrayList<>();
+
+            private final DatabaseOperationsThread operationsThread;
+            private volatile CancellationSignal signal = new CancellationSignal();
+            private SQLiteDatabase db;
+            private int step;
+            private List<String> report = new ArrayList<>();
+
+            DatabaseMaintenance(DatabaseOperationsThread operationsThread) {
+                this.operationsThread = operationsThread;
+            }
+
+            void onSchemaChanged() {
+                schemaChanged = true;
+            }
+
+            void onRowsChanged(long rowCount) {
+                rowsChanged += rowCount;
+            }
+
+            synchronized List<String> getLastReport() {
+                return new ArrayList<>(lastReport);
+            }
+
+            void reset() {
+                step = STEP_CHECKPOINT;
+                report = new ArrayList<>();
+                signal = new CancellationSignal();
+            }
+
+            void cancel() {
+                signal.cancel();
+            }
+
+            @Override
+            public int getPriority() {
+                return OperationScheduler.PRIORITY_MAINTENANCE;
+            }
+
+            @Override
+            public boolean isWrite() {
+                return false;
+            }
+
+            @Override
+            public boolean beginsTransaction() {
+                return false;
+            }
+
+            @Override
+            public boolean endsTransaction() {
+                return false;
+            }
+
+            @Override
+            public boolean closesDatabase() {
+                return false;
+            }
+
+            @Override
+            public void run() {
+                db = operationsThread.service.db;
+                if (operationsThread.hasPendingOperations() || signal.isCanceled() ||
+                        db == null || !db.isOpen() || db.inTransaction()) {
+                    return;
+                }
+
+                boolean repeatStep = false;
+                long start = System.currentTimeMillis();
+                try {
+                    switch (step) {
+                        case STEP_CHECKPOINT:
+                            long walBytes = new File(db.getPath() + "-wal").length();
+                            if (walBytes >= WAL_TRUNCATE_CHECKPOINT_BYTES) {
+                                addToReport("wal_checkpoint(TRUNCATE)",
+                                        executePragma("pragma wal_checkpoint(TRUNCATE)") + " wal_bytes=" + walBytes, start);
+                            } else if (walBytes >= WAL_PASSIVE_CHECKPOINT_BYTES) {
+                                addToReport("wal_checkpoint(PASSIVE)",
+                                        executePragma("pragma wal_checkpoint(PASSIVE)") + " wal_bytes=" + walBytes, start);
+                            }
+                            break;
+
+                        case STEP_OPTIMIZE:
+                            if (schemaChanged || rowsChanged >= OPTIMIZE_ROWS_CHANGED_THRESHOLD) {
+                                executePragma("pragma optimize");
+                                addToReport("optimize", "schema_changed=" + schemaChanged +
+                                        " rows_changed=" + rowsChanged, start);
+                                schemaChanged = false;
+                                rowsChanged = 0L;
+                            }
+                            break;
+
+                        case STEP_INCREMENTAL_VACUUM:
+                            if (Integer.parseInt(executePragma("pragma auto_vacuum")) == AUTO_VACUUM_INCREMENTAL) {
+                                int freePages = Integer.parseInt(executePragma("pragma freelist_count"));
+                                if (freePages > 0) {
+                                    executePragma("pragma incremental_vacuum(" + INCREMENTAL_VACUUM_PAGES + ")");
+                                    addToReport("incremental_vacuum", "freelist_pages=" + freePages, start);
+                                    repeatStep = freePages > INCREMENTAL_VACUUM_PAGES;
+                                }
+                            }
+                            break;
+
+                        case STEP_COMPACT_CHANGE_LOG:
+                            if (ChangeTracker.needsCompaction(db)) {
+                                int removed = ChangeTracker.compact(db);
+                                addToReport("compact_change_log", "entries_removed=" + removed, start);
+                            }
+                            break;
+                    }
+                } catch (SQLException | NumberFormatException e) {
+                    addToReport("step " + step, "Exception:" + e.toString(), start);
+                } catch (OperationCanceledException e) {
+                    return;
+                }
+
+                if (!repeatStep) {
+                    step++;
+                }
+                if (step < STEP_DONE) {
+                    operationsThread.addOperationToQueue(this);
+                } else if (!report.isEmpty()) {
+                    synchronized (this) {
+                        lastReport = report;
+                    }
+                    Log.d("SQLiteContentProvider", "Maintenance:" + report.toString());
+                }
+            }
+
+            private String executePragma(String pragma) {
+                StringBuilder result = new StringBuilder();
+                Cursor cursor = null;
+                try {
+                    cursor = db.rawQuery(pragma, null, signal);
+                    if (cursor != null && cursor.moveToFirst()) {
+                        for (int i = 0; i < cursor.getColumnCount(); i++) {
+                            if (i > 0) {
+                                result.append("|");
+                            }
+                            result.append(cursor.getString(i));
+                        }
+                    }
+                } finally {
+                    if (cursor != null)
+                        cursor.close();
+                }
+                return result.toString();
+            }
+
+            private void addToReport(String task, String result, long start) {
+                if (report.isEmpty()) {
+                    report.add("task:3,result:3,duration_ms:1");
+                }
+                report.add(task + "," + result + "," + (System.currentTimeMillis() - start));
+            }
+        }
+
+        /*
+         * Value search across tables and databases. The worker thread only hands the search to a pool of
+         * SEARCH_THREADS threads, each with its own read-only connection, which take tables from a
+         * shared queue so large tables do not hold up the rest. Matches are sent to the callback
+         * straight from the pool as each table completes, one row per matching column. The search reads
+         * committed data only, writes pending in a transaction on the worker connection are not seen.
+         */
+        private static class ParallelSearch {
+            private static final String RESULT_HEADER = "database:3,table:3,column:3,rowid:1,value:3";
+
+            private final String term;
+            private final String table;
+            private final List<String> databaseNames;
+            private final int maxMatches;
+            private final ContentProviderAidlCallback callback;
+            private final Set<CancellationSignal> activeOperations;
+            private final CancellationSignal signal = new CancellationSignal();
+            private final ConcurrentLinkedQueue<SearchTarget> targets = new ConcurrentLinkedQueue<>();
+            private final AtomicInteger matches = new AtomicInteger();
+            private final AtomicInteger runningWorkers = new AtomicInteger();
+
+            private static class SearchTarget {
+                final String databaseName;
+                final String table;
+                final boolean withoutRowid;
+
+                SearchTarget(String databaseName, String table, boolean withoutRowid) {
+                    this.databaseName = databaseName;
+                    this.table = table;
+                    this.withoutRowid = withoutRowid;
+                }
+            }
+
+            private ParallelSearch(String term, String table, List<String> databaseNames, int maxMatches,
+                                   ContentProviderAidlCallback callback, Set<CancellationSignal> activeOperations) {
+                this.term = term;
+                this.table = table;
+                this.databaseNames = databaseNames;
+                this.maxMatches = maxMatches;
+                this.callback = callback;
+                this.activeOperations = activeOperations;
+            }
+
+            /*
+             * The search's signal is kept in activeOperations while it runs, so the owning service can
+             * cancel it.
+             */
+            static void start(String dbName, String term, String table, String[] databases, String limit,
+                              ContentProviderAidlCallback callback, Set<CancellationSignal> activeOperations) {
+                List<String> databaseNames = new ArrayList<>();
+                if (dbName != null) {
+                    databaseNames.add(dbName);
+                }
+                if (databases != null) {
+                    for (String database : databases) {
+                        if ("*".equals(database)) {
+                            File[] files = new File(dbPath).listFiles();
+                            if (files != null) {
+                                for (File file : files) {
+                                    String name = file.getName();
+                                    if (file.isFile() && !name.endsWith("-wal") && !name.endsWith("-shm") &&
+                                            !name.endsWith("-journal") && !databaseNames.contains(name)) {
+                                        databaseNames.add(name);
+                                    }
+                                }
+                            }
+                        } else if (!database.contains(File.separator) && !databaseNames.contains(database) &&
+                                new File(dbPath + database).isFile()) {
+                            databaseNames.add(database);
+                        }
+                    }
+                }
+
+                int maxMatches = SEARCH_DEFAULT_MAX_MATCHES;
+                if (limit != null) {
+                    try {
+                        maxMatches = Integer.parseInt(limit);
+                    } catch (NumberFormatException e) {
+                        Log.d("SQLiteContentProvider", "Exception:" + e.toString());
+                    }
+                }
+
+                final ParallelSearch search = new ParallelSearch(term, table, databaseNames, maxMatches, callback,
+                        activeOperations);
+                activeOperations.add(search.signal);
+                search.runningWorkers.set(1);
+                searchExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        search.listTargets();
+                        for (int i = 1; i < SEARCH_THREADS && !search.targets.isEmpty(); i++) {
+                            search.runningWorkers.incrementAndGet();
+                            searchExecutor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    search.work();
+                                }
+                            });
+                        }
+                        search.work();
+                    }
+                });
+            }
+
+            private void listTargets() {
+                for (String databaseName : databaseNames) {
+                    if (signal.isCanceled()) {
+                        return;
+                    }
+                    SQLiteDatabase connection = null;
+                    Cursor cursor = null;
+                    try {
+                        connection = SQLiteDatabase.openDatabase(dbPath + databaseName, null, SQLiteDatabase.OPEN_READONLY);
+                        cursor = connection.rawQuery("select name, sql from sqlite_master where type = 'table' " +
+                                "and name not like 'sqlite\\_%' escape '\\' and name not like '\\_provider\\_%' escape '\\'" + (table != null ? " and name = ?" : ""),
+                                table != null ? new String[]{table} : null);
+                        while (cursor.moveToNext()) {
+                            String sql = cursor.getString(1);
+                            targets.add(new SearchTarget(databaseName, cursor.getString(0),
+                                    sql != null && sql.toUpperCase(Locale.ROOT).matches("(?s).*WITHOUT\\s+ROWID.*")));
+                        }
+                    } catch (SQLException e) {
+                        Log.d("SQLiteContentProvider", "Exception:" + e.toString());
+                    } finally {
+                        if (cursor != null)
+                            cursor.close();
+                        if (connection != null)
+                            connection.close();
+                    }
+                }
+            }
+
+            private void work() {
+                SQLiteDatabase connection = null;
+                String connectionDatabase = null;
+                try {
+                    SearchTarget target;
+                    while (!signal.isCanceled() && (target = targets.poll()) != null) {
+                        try {
+                            if (!target.databaseName.equals(connectionDatabase)) {
+                                if (connection != null) {
+                                    connection.close();
+                                }
+                                connection = SQLiteDatabase.openDatabase(dbPath + target.databaseName, null,
+                                        SQLiteDatabase.OPEN_READONLY);
+                                connectionDatabase = target.databaseName;
+                            }
+                            List<String> rows = searchTable(connection, target);
+                            if (!rows.isEmpty()) {
+                                sendRows("partial", rows);
+                            }
+                        } catch (SQLException e) {
+                            Log.d("SQLiteContentProvider", "Exception:" + e.toString());
+                        } catch (OperationCanceledException e) {
+                            // Cancelled by the client or the match cap was reached.
+                        }
+                    }
+                } finally {
+                    if (connection != null) {
+                        connection.close();
+                    }
+                    if (runningWorkers.decrementAndGet() == 0) {
+                        activeOperations.remove(signal);
+                        sendRows(String.valueOf(Math.min(matches.get(), maxMatches)), new ArrayList<String>());
+                    }
+                }
+            }
+
+            private List<String> searchTable(SQLiteDatabase connection, SearchTarget target) {
+                List<String> columns = new ArrayList<>();
+                Cursor cursor = connection.rawQuery("pragma table_info(" + quoteIdentifier(target.table) + ")", null);
+                try {
+                    while (cursor.moveToNext()) {
+                        columns.add(cursor.getString(1));
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                List<String> rows = new ArrayList<>();
+                if (columns.isEmpty()) {
+                    return rows;
+                }
+                String pattern = "%" + term.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+                StringBuilder sql = new StringBuilder("select ");
+                sql.append(target.withoutRowid ? "null" : "rowid");
+                StringBuilder where = new StringBuilder();
+                String[] args = new String[columns.size()];
+                for (int i = 0; i < columns.size(); i++) {
+                    sql.append(", ").append(quoteIdentifier(columns.get(i)));
+                    if (i > 0) {
+                        where.append(" or ");
+                    }
+                    where.append(quoteIdentifier(columns.get(i))).append(" like ? escape '\\'");
+                    args[i] = pattern;
+                }
+                sql.append(" from ").append(quoteIdentifier(target.table)).append(" where ").append(where)
+                        .append(" limit ").append(Math.max(0, maxMatches - matches.get()));
+
+                String lowerTerm = term.toLowerCase(Locale.ROOT);
+                cursor = connection.rawQuery(sql.toString(), args, signal);
+                try {
+                    while (cursor.moveToNext()) {
+                        for (int i = 0; i < columns.size(); i++) {
+                            if (cursor.getType(i + 1) == Cursor.FIELD_TYPE_BLOB) {
+                                continue;
+                            }
+                            String value = cursor.getString(i + 1);
+                            if (value == null || !value.toLowerCase(Locale.ROOT).contains(lowerTerm)) {
+                                continue;
+                            }
+                            if (matches.incrementAndGet() > maxMatches) {
+                                signal.cancel();
+                                return rows;
+                            }
+                            rows.add(escapeValue(target.databaseName) + "," +
+                                    escapeValue(target.table) + "," +
+                                    escapeValue(columns.get(i)) + "," +
+                                    (cursor.isNull(0) ? "" : cursor.getString(0)) + "," +
+                                    escapeValue(value));
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return rows;
+            }
+
+            private void sendRows(String operationResult, List<String> rows) {
+                ArrayList<String> list = new ArrayList<>();
+                list.add(operationResult);
+                list.add(term);
+                list.add(SQL_TYPE_SEARCH);
+                list.add(table);
+                list.add("true");
+                if (!rows.isEmpty()) {
+                    list.add(RESULT_HEADER);
+                    list.addAll(rows);
+                }
+                // Pool threads report concurrently, the client sees one callback at a time.
+                synchronized (this) {
+                    try {
+                        callback.aidlInterfaceCallback(list);
+                    } catch (RemoteException e) {
+                        signal.cancel();
+                        Log.d("SQLiteContentProvider", "Exception:" + e.toString());
+                    }
+                }
+            }
+        }
+
+        /*
+         * Sends backup progress and the final result straight to the client from the backup thread.
+         */
+        private static class BackupCallback implements OnBackupProgressListener {
+            private final String dbName;
+            private final String sql;
+            private final ContentProviderAidlCallback callback;
+
+            BackupCallback(String dbName, String sql, ContentProviderAidlCallback callback) {
+                this.dbName = dbName;
+                this.sql = sql;
+                this.callback = callback;
+            }
+
+            @Override
+            public void onProgress(String method, long rowsCopied, long rowsTotal) {
+                send("progress", "method:3,rows_copied:1,rows_total:1", method + "," + rowsCopied + "," + rowsTotal);
+            }
+
+            @Override
+            public void onFinished(File file, String method, long durationMillis) {
+                Uri uri = BASE_URI.buildUpon().appendPath(PATH_BACKUP).appendPath(file.getName()).build();
+                send("true", "database:3,file:3,uri:3,method:3,bytes:1,duration_ms:1",
+                        escapeValue(dbName) + "," + escapeValue(file.getName()) + "," + escapeValue(uri.toString()) + "," +
+                                method + "," + file.length() + "," + durationMillis);
+            }
+
+            @Override
+            public void onFailed(String error) {
+                send(error, null, null);
+            }
+
+            private void send(String operationResult, String header, String row) {
+                ArrayList<String> list = new ArrayList<>();
+                list.add(operationResult);
+                list.add(sql);
+                list.add(SQL_TYPE_BACKUP);
+                list.add(dbName);
+                list.add("true");
+                if (header != null) {
+                    list.add(header);
+                    list.add(row);
+                }
+                try {
+                    callback.aidlInterfaceCallback(list);
+                } catch (RemoteException e) {
+                    Log.d("SQLiteContentProvider", "Exception:" + e.toString());
+                }
+            }
+        }
+
+        /*
+         * Identical reads (same database, statement, arguments and window) that are queued or running
+         * at the same time are executed once, later copies attach their callback to the first and
+         * receive the same result. Only reads with a valid access code take part, the encrypted code
+         * differs per request so it cannot be part of the key. Any write queued in between starts a
+         * new epoch, so a read is never answered with a result from before a write it was queued after.
+         */
+        private class QueryCoalescer {
+            private final Map<String, DatabaseOperationRunnable> inFlightQueries = new HashMap<>();
+            private long writeEpoch;
+
+            /*
+             * Returns true when the operation has been attached to an identical in-flight query and
+             * must not be queued.
+             */
+            synchronized boolean coalesce(DatabaseOperationRunnable operation) {
+                if (operation.isWrite()) {
+                    writeEpoch++;
+                    return false;
+                }
+                String key = operation.getCoalescingKey();
+                if (key == null || !hasValidAccessCode(operation)) {
+                    return false;
+                }
+                key = writeEpoch + "|" + key;
+                DatabaseOperationRunnable leader = inFlightQueries.get(key);
+                if (leader != null) {
+                    leader.followerCallbacks.add(operation.callback);
+                    databaseOperationsThread.recordCoalescedOperation(operation.getPriority());
+                    return true;
+                }
+                operation.coalescingKey = key;
+                inFlightQueries.put(key, operation);
+                return false;
+            }
+
+            private boolean hasValidAccessCode(DatabaseOperationRunnable operation) {
+                try {
+                    return decryptUriAccessParameter(operation.accessCode);
+                } catch (SecurityException | IllegalArgumentException e) {
+                    return false;
+                }
+            }
+
+            synchronized List<ContentProviderAidlCallback> complete(DatabaseOperationRunnable operation) {
+                if (operation.coalescingKey == null) {
+                    return new ArrayList<>();
+                }
+                if (inFlightQueries.get(operation.coalescingKey) == operation) {
+                    inFlightQueries.remove(operation.coalescingKey);
+                }
+                return new ArrayList<>(operation.followerCallbacks);
             }
         }
 
-        private class DatabaseOperationRunnable implements Runnable {
+        private class DatabaseOperationRunnable implements PrioritizedOperation {
             private final String sqlType;
             private final String sql;
             private final String dbName;
@@ -295,6 +2687,9 @@ public class SQLiteContentProvider extends ContentProvider {
             private final ContentValues values;
             private final ContentValues[] rows;
             private final boolean displayQueryResults;
+            private int batchIndex;
+            private String coalescingKey;
+            private final List<ContentProviderAidlCallback> followerCallbacks = new ArrayList<>();
 
             DatabaseOperationRunnable(String sqlType,
                                       String sql,
@@ -328,13 +2723,135 @@ public class SQLiteContentProvider extends ContentProvider {
                 this.displayQueryResults = displayQueryResults;
             }
 
+            @Override
+            public int getPriority() {
+                switch (sqlType) {
+                    case SQL_TYPE_QUERY:
+                    case SQL_TYPE_IN_TRANSACTION:
+                    case SQL_TYPE_CHANGES_SINCE:
+                    case SQL_TYPE_MAINTENANCE:
+                    case SQL_TYPE_SCHEDULER_STATS:
+                    case SQL_TYPE_SCHEMA:
+                    case SQL_TYPE_ROW_COUNT:
+                    case SQL_TYPE_SEARCH:
+                    case SQL_TYPE_BACKUP:
+                        return OperationScheduler.PRIORITY_INTERACTIVE;
+                    case SQL_TYPE_INDEX_ADVICE:
+                        // Verification copies the table and builds the candidate indexes.
+                        return "verify".equalsIgnoreCase(sql) ?
+                                OperationScheduler.PRIORITY_BULK : OperationScheduler.PRIORITY_INTERACTIVE;
+                    case SQL_TYPE_PRAGMA:
+                        // A pragma that assigns a value changes how later statements behave.
+                        return sql != null && sql.contains("=") ?
+                                OperationScheduler.PRIORITY_NORMAL : OperationScheduler.PRIORITY_INTERACTIVE;
+                    case SQL_TYPE_BATCH:
+                        return OperationScheduler.PRIORITY_BULK;
+                    default:
+                        return OperationScheduler.PRIORITY_NORMAL;
+                }
+            }
+
+            @Override
+            public boolean isWrite() {
+                return getPriority() != OperationScheduler.PRIORITY_INTERACTIVE;
+            }
+
+            @Override
+            public boolean beginsTransaction() {
+                return sqlType.equals(SQL_TYPE_TRANSACTION) && "begin transaction".equals(sql);
+            }
+
+            @Override
+            public boolean endsTransaction() {
+                return sqlType.equals(SQL_TYPE_TRANSACTION) && ("commit".equals(sql) || "rollback".equals(sql));
+            }
+
+            @Override
+            public boolean closesDatabase() {
+                return sqlType.equals(SQL_TYPE_CLOSE_DATABASE);
+            }
+
+            String getCoalescingKey() {
+                switch (sqlType) {
+                    case SQL_TYPE_QUERY:
+                    case SQL_TYPE_PRAGMA:
+                    case SQL_TYPE_CHANGES_SINCE:
+                    case SQL_TYPE_SCHEMA:
+                    case SQL_TYPE_ROW_COUNT:
+                        StringBuilder key = new StringBuilder();
+                        appendKeyPart(key, sqlType);
+                        appendKeyPart(key, dbName);
+                        appendKeyPart(key, sql);
+                        appendKeyPart(key, object);
+                        appendKeyParts(key, projection);
+                        appendKeyPart(key, selection);
+                        appendKeyParts(key, selectionArgs);
+                        appendKeyPart(key, sortOrder);
+                        appendKeyPart(key, limitStartPosition);
+                        appendKeyPart(key, limitEndPosition);
+                        appendKeyPart(key, String.valueOf(displayQueryResults));
+                        return key.toString();
+                    default:
+                        return null;
+                }
+            }
+
+            private void appendKeyParts(StringBuilder key, String[] parts) {
+                if (parts == null) {
+                    key.append("-1;");
+                    return;
+                }
+                key.append(parts.length).append(';');
+                for (String part : parts) {
+                    appendKeyPart(key, part);
+                }
+            }
+
+            private void appendKeyPart(StringBuilder key, String part) {
+                if (part == null) {
+                    key.append("-1;");
+                } else {
+                    key.append(part.length()).append(':').append(part).append(';');
+                }
+            }
+
             @Override
             public void run() {
-                aidlCallback = callback;
                 ArrayList<String> list = new ArrayList<>();
                 String operationResult = null;
+                long maintenanceDelay = DatabaseMaintenance.IDLE_DELAY_MS;
+                boolean resultSentLater = false;
                 if (decryptUriAccessParameter(accessCode)) {
                     switch (sqlType) {
+                        case SQL_TYPE_SEARCH:
+                            if (sql == null || sql.isEmpty()) {
+                                operationResult = "Exception: No search term";
+                                break;
+                            }
+                            ParallelSearch.start(dbName, sql, object, projection, limitEndPosition, callback,
+                                    backgroundOperations);
+                            resultSentLater = true;
+                            break;
+
+                        case SQL_TYPE_BACKUP:
+                            if (dbName == null || !new File(dbPath + dbName).isFile()) {
+                                operationResult = "Exception: No such database " + dbName;
+                                break;
+                            }
+                            long throttleMillis = 0L;
+                            try {
+                                if (sql != null) {
+                                    throttleMillis = Long.parseLong(sql);
+                                }
+                            } catch (NumberFormatException e) {
+                                operationResult = "Exception:" + e.toString();
+                                break;
+                            }
+                            OnlineBackup.start(getCacheDir(), dbPath + dbName, dbName, throttleMillis, backgroundOperations,
+                                    new BackupCallback(dbName, sql, callback));
+                            resultSentLater = true;
+                            break;
+
                         case SQL_TYPE_TRANSACTION:
                             try {
                                 switch (sql) {
@@ -342,13 +2859,19 @@ public class SQLiteContentProvider extends ContentProvider {
                                         if (db == null || !db.isOpen())
                                             db = SQLiteDatabase.openDatabase(dbPath + dbName, null, SQLiteDatabase.OPEN_READWRITE);
                                         db.beginTransaction();
+                                        changeNotifier.beginHold();
                                         break;
                                     case "commit":
                                         db.setTransactionSuccessful();
                                         db.endTransaction();
+                                        changeNotifier.endHold(true);
                                         break;
                                     case "rollback":
                                         db.endTransaction();
+                                        changeNotifier.endHold(false);
+                                        // A snapshot of rolled back DDL carries a schema_version the next DDL can reuse.
+                                        SchemaSnapshotCache.invalidate(db);
+                                        RowCountCache.invalidate(db);
                                         break;
                                 }
                                 operationResult = "true";
@@ -360,7 +2883,10 @@ public class SQLiteContentProvider extends ContentProvider {
                         case SQL_TYPE_CLOSE_DATABASE:
                             if (db != null && db.isOpen() && db.inTransaction()) {
                                 db.endTransaction();
+                                changeNotifier.endHold(false);
                             }
+                            SchemaSnapshotCache.invalidate(db);
+                            RowCountCache.invalidate(db);
                             if (db != null && db.isOpen()) {
                                 db.close();
                             }
@@ -383,16 +2909,16 @@ public class SQLiteContentProvider extends ContentProvider {
                             if (limitStartPosition != null) {
                                 limitRows = limitStartPosition + "," + limitEndPosition;
                             }
-                            List<String> queryRows = new ArrayList<>();
                             Cursor cursor = null;
 
                             try {
+                                long queryStart = System.nanoTime();
                                 if (sql == null) {
                                     cursor = db.query(
                                             false,
                                             object,
                                             projection,
-                                            selection,
+                                            FtsShadowIndex.rewriteSelection(db, object, selection),
                                             selectionArgs,
                                             null,
                                             null,
@@ -413,56 +2939,12 @@ public class SQLiteContentProvider extends ContentProvider {
                                 }
 
                                 if (cursor != null) {
-                                    if (cursor.moveToFirst()) {
-                                        StringBuilder stringBuilder = new StringBuilder();
-                                        for (int i = 0; i < cursor.getColumnCount(); i++) {
-                                            stringBuilder.append(cursor.getColumnName(i));
-                                            stringBuilder.append((":"));
-                                            stringBuilder.append(cursor.getType(i));
-                                            if (i < cursor.getColumnCount() - 1) {
-                                                stringBuilder.append(",");
-                                            }
-                                        }
-                                        queryRows.add(stringBuilder.toString());
-
-                                        String value;
-                                        do {
-                                            stringBuilder.setLength(0);
-                                            for (int i = 0; i < cursor.getColumnCount(); i++) {
-                                                switch (cursor.getType(i)) {
-                                                    case Cursor.FIELD_TYPE_NULL:
-                                                        value = null;
-                                                        break;
-                                                    case Cursor.FIELD_TYPE_FLOAT:
-                                                        value = String.format(Locale.getDefault(),
-                                                                "%.4f", cursor.getFloat(i));
-                                                        break;
-                                                    case Cursor.FIELD_TYPE_INTEGER:
-                                                        value = Integer.toString(cursor.getInt(i));
-                                                        break;
-                                                    case Cursor.FIELD_TYPE_STRING:
-                                                        //noinspection DuplicateBranchesInSwitch
-                                                        value = cursor.getString(i);
-                                                        break;
-                                                    case Cursor.FIELD_TYPE_BLOB:
-                                                        value = "blob";
-                                                        break;
-                                                    default:
-                                                        value = cursor.getString(i);
-                                                        break;
-                                                }
-
-                                                if (value != null) {
-                                                    stringBuilder.append(value);
-                                                }
-                                                if (i < cursor.getColumnCount() - 1) {
-                                                    stringBuilder.append(",");
-                                                }
-                                            }
-                                            queryRows.add(stringBuilder.toString());
-                                        } while (cursor.moveToNext());
-
-                                        list.addAll(queryRows);
+                                    List<String> queryRows = new ArrayList<>();
+                                    addCursorRows(cursor, queryRows);
+                                    list.addAll(queryRows);
+                                    if (sql == null) {
+                                        IndexAdvisor.record(db, object, projection, selection, selectionArgs,
+                                                sortOrder, System.nanoTime() - queryStart);
                                     }
                                 }
                             } catch (SQLException | OperationCanceledException e) {
@@ -480,9 +2962,12 @@ public class SQLiteContentProvider extends ContentProvider {
                             cursor = null;
                             try {
                                 if (sql == null) {
-                                    db.insert(object, null, values);
+                                    if (db.insert(object, null, values) != -1L) {
+                                        RowCountCache.onRowsInserted(db, object, 1L);
+                                    }
                                 } else {
                                     db.execSQL(sql);
+                                    RowCountCache.invalidate(db);
                                 }
                                 cursor = db.rawQuery("select changes()", null);
                                 if (cursor != null) {
@@ -491,6 +2976,11 @@ public class SQLiteContentProvider extends ContentProvider {
                                     cursor.close();
                                 }
                                 operationResult = String.valueOf(rowCount);
+                                databaseOperationsThread.maintenance.onRowsChanged(rowCount);
+                                if (rowCount > 0) {
+                                    changeNotifier.notifyTableChanged(dbName,
+                                            sql == null ? object : ChangeNotifier.getStatementTable(sql));
+                                }
                             } catch (SQLException e) {
                                 operationResult = "Exception:" + e.toString();
                             } finally {
@@ -505,16 +2995,20 @@ public class SQLiteContentProvider extends ContentProvider {
                             cursor = null;
                             try {
                                 if (sql == null) {
-                                    if (sqlType.equalsIgnoreCase(SQL_TYPE_UPDATE))
+                                    if (sqlType.equalsIgnoreCase(SQL_TYPE_UPDATE)) {
                                         rowCount = db.update(
                                                 object,
                                                 values,
                                                 selection,
                                                 selectionArgs);
-                                    else
+                                        RowCountCache.onRowsUpdated(db, object);
+                                    } else {
                                         rowCount = db.delete(object, selection, selectionArgs);
+                                        RowCountCache.onRowsDeleted(db, object, rowCount);
+                                    }
                                 } else {
                                     db.execSQL(sql);
+                                    RowCountCache.invalidate(db);
                                     cursor = db.rawQuery("select changes()", null);
                                     if (cursor != null) {
                                         if (cursor.moveToFirst())
@@ -523,6 +3017,11 @@ public class SQLiteContentProvider extends ContentProvider {
                                     }
                                 }
                                 operationResult = String.valueOf(rowCount);
+                                databaseOperationsThread.maintenance.onRowsChanged(rowCount);
+                                if (rowCount > 0) {
+                                    changeNotifier.notifyTableChanged(dbName,
+                                            sql == null ? object : ChangeNotifier.getStatementTable(sql));
+                                }
                             } catch (SQLException e) {
                                 operationResult = "Exception:" + e.toString();
                             } finally {
@@ -539,21 +3038,159 @@ public class SQLiteContentProvider extends ContentProvider {
                             try {
                                 db.execSQL(sql);
                                 operationResult = "true";
+                                databaseOperationsThread.maintenance.onSchemaChanged();
+                                SchemaSnapshotCache.invalidate(db);
+                                RowCountCache.invalidate(db);
+                                changeNotifier.notifyTableChanged(dbName, null);
                             } catch (SQLException e) {
                                 operationResult = "Exception:" + e.toString();
                             }
                             break;
 
                         case SQL_TYPE_BATCH:
-                            int index = 0;
+                            int startIndex = batchIndex;
+                            try {
+                                while (batchIndex < rows.length) {
+                                    db.insert(object, null, rows[batchIndex]);
+                                    batchIndex++;
+                                    if (batchIndex % BATCH_YIELD_ROWS == 0 && batchIndex < rows.length &&
+                                            databaseOperationsThread.yieldToWaitingOperations()) {
+                                        databaseOperationsThread.maintenance.onRowsChanged(batchIndex - startIndex);
+                                        RowCountCache.invalidate(db);
+                                        return;
+                                    }
+                                }
+                                operationResult = String.valueOf(batchIndex);
+                            } catch (SQLException e) {
+                                operationResult = "Exception:" + e.toString() + "(row " + batchIndex + ")";
+                            }
+                            databaseOperationsThread.maintenance.onRowsChanged(batchIndex - startIndex);
+                            // db.insert reports failed rows through its return value, so the number
+                            // of rows actually added is not known here.
+                            RowCountCache.invalidate(db);
+                            if (batchIndex > 0) {
+                                changeNotifier.notifyTableChanged(dbName, object);
+                            }
+                            break;
+
+                        case SQL_TYPE_MAINTENANCE:
+                            if ("run".equalsIgnoreCase(sql)) {
+                                maintenanceDelay = 0L;
+                            }
+                            list.addAll(databaseOperationsThread.maintenance.getLastReport());
+                            operationResult = "true";
+                            break;
+
+                        case SQL_TYPE_SCHEDULER_STATS:
+                            list.addAll(databaseOperationsThread.getSchedulerStatistics());
+                            operationResult = "true";
+                            break;
+
+                        case SQL_TYPE_SCHEMA:
+                            try {
+                                list.addAll(SchemaSnapshotCache.getSnapshot(db));
+                                operationResult = "true";
+                            } catch (SQLException e) {
+                                operationResult = "Exception:" + e.toString();
+                            }
+                            break;
+
+                        case SQL_TYPE_FTS_INDEX:
+                            try {
+                                if ("create".equals(sql)) {
+                                    list.addAll(FtsShadowIndex.create(db, object, projection));
+                                } else if ("drop".equals(sql)) {
+                                    FtsShadowIndex.drop(db, object);
+                                } else {
+                                    throw new SQLException("Unknown FTS index action " + sql + ", expected create or drop");
+                                }
+                                operationResult = "true";
+                                databaseOperationsThread.maintenance.onSchemaChanged();
+                                SchemaSnapshotCache.invalidate(db);
+                                RowCountCache.invalidate(db);
+                            } catch (SQLException e) {
+                                operationResult = "Exception:" + e.toString();
+                            }
+                            break;
+
+                        case SQL_TYPE_INDEX_ADVICE:
+                            if ("verify".equalsIgnoreCase(sql) && db != null && db.isOpen() && db.inTransaction()) {
+                                operationResult = "Exception: Verifying index suggestions needs a session without an open transaction";
+                                break;
+                            }
+                            try {
+                                List<String> suggestions = IndexAdvisor.getSuggestions(db, "verify".equalsIgnoreCase(sql));
+                                list.addAll(suggestions);
+                                operationResult = String.valueOf(suggestions.size() - 1);
+                            } catch (SQLException e) {
+                                operationResult = "Exception:" + e.toString();
+                            }
+                            break;
+
+                        case SQL_TYPE_ROW_COUNT:
+                            try {
+                                RowCountCache.RowCount count = RowCountCache.getRowCount(
+                                        db, object, "approximate".equalsIgnoreCase(sql), true);
+                                list.add("table:3,row_count:1,source:3");
+                                list.add(object + "," + count.count + "," + count.source);
+                                operationResult = String.valueOf(count.count);
+                            } catch (SQLException e) {
+                                operationResult = "Exception:" + e.toString();
+                            }
+                            break;
+
+                        case SQL_TYPE_CHANGE_TRACKING:
                             try {
-                                for (ContentValues contentValues : rows) {
-                                    db.insert(object, null, contentValues);
-                                    index++;
+                                switch (String.valueOf(sql)) {
+                                    case "enable":
+                                        ChangeTracker.enable(db, object);
+                                        databaseOperationsThread.maintenance.onSchemaChanged();
+                                        SchemaSnapshotCache.invalidate(db);
+                                        RowCountCache.invalidate(db);
+                                        break;
+                                    case "disable":
+                                        ChangeTracker.disable(db, object);
+                                        databaseOperationsThread.maintenance.onSchemaChanged();
+                                        SchemaSnapshotCache.invalidate(db);
+                                        RowCountCache.invalidate(db);
+                                        break;
+                                    case "compact":
+                                        ChangeTracker.compact(db);
+                                        break;
+                                    default:
+                                        throw new SQLException("Unknown change tracking action " + sql +
+                                                ", expected enable, disable or compact");
                                 }
-                                operationResult = String.valueOf(index);
+                                operationResult = String.valueOf(ChangeTracker.getCurrentVersion(db));
                             } catch (SQLException e) {
-                                operationResult = "Exception:" + e.toString() + "(row " + index + ")";
+                                operationResult = "Exception:" + e.toString();
+                            }
+                            break;
+
+                        case SQL_TYPE_CHANGES_SINCE:
+                            if (cancellationSignal.isCanceled()) {
+                                cancellationSignal = new CancellationSignal();
+                            }
+                            cursor = null;
+                            try {
+                                cursor = ChangeTracker.queryChangesSince(
+                                        db,
+                                        object,
+                                        projection,
+                                        Long.parseLong(sql),
+                                        cancellationSignal);
+                                long currentVersion = ChangeTracker.getCurrentVersion(db);
+                                List<String> queryRows = new ArrayList<>();
+                                addCursorRows(cursor, queryRows);
+                                list.addAll(queryRows);
+                                operationResult = String.valueOf(currentVersion);
+                            } catch (SQLException | NumberFormatException e) {
+                                operationResult = "Exception:" + e.toString();
+                            } catch (OperationCanceledException e) {
+                                // Cancelled by the client, nothing to return.
+                            } finally {
+                                if (cursor != null)
+                                    cursor.close();
                             }
                             break;
                     }
@@ -561,20 +3198,83 @@ public class SQLiteContentProvider extends ContentProvider {
                     operationResult = "Exception: Could not decrypt access code";
                 }
 
-                list.add(0, operationResult);
-                list.add(1, sql);
-                list.add(2, sqlType);
-                list.add(3, object);
-                list.add(4, String.valueOf(displayQueryResults));
+                if (!resultSentLater) {
+                    list.add(0, operationResult);
+                    list.add(1, sql);
+                    list.add(2, sqlType);
+                    list.add(3, object);
+                    list.add(4, String.valueOf(displayQueryResults));
+                    sendResult(callback, list);
+                    for (ContentProviderAidlCallback followerCallback : queryCoalescer.complete(this)) {
+                        sendResult(followerCallback, new ArrayList<>(list));
+                    }
+                }
+                databaseOperationsThread.onOperationFinished(maintenanceDelay);
+            }
+
+            private void sendResult(ContentProviderAidlCallback resultCallback, ArrayList<String> list) {
                 Message msg = databaseOperationsThread.operationsHandler.obtainMessage();
                 Bundle bundle = new Bundle();
                 bundle.putStringArrayList(KEY_AIDL_CALLBACK_LIST, list);
                 msg.setData(bundle);
+                msg.obj = resultCallback;
                 msg.setTarget(databaseOperationsThread.operationsHandler);
                 msg.sendToTarget();
             }
         }
 
+        private static void addCursorRows(Cursor cursor, List<String> rows) {
+            if (cursor.moveToFirst()) {
+                StringBuilder stringBuilder = new StringBuilder();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    stringBuilder.append(cursor.getColumnName(i));
+                    stringBuilder.append((":"));
+                    stringBuilder.append(cursor.getType(i));
+                    if (i < cursor.getColumnCount() - 1) {
+                        stringBuilder.append(",");
+                    }
+                }
+                rows.add(stringBuilder.toString());
+
+                String value;
+                do {
+                    stringBuilder.setLength(0);
+                    for (int i = 0; i < cursor.getColumnCount(); i++) {
+                        switch (cursor.getType(i)) {
+                            case Cursor.FIELD_TYPE_NULL:
+                                value = null;
+                                break;
+                            case Cursor.FIELD_TYPE_FLOAT:
+                                value = String.format(Locale.getDefault(),
+                                        "%.4f", cursor.getFloat(i));
+                                break;
+                            case Cursor.FIELD_TYPE_INTEGER:
+                                value = Integer.toString(cursor.getInt(i));
+                                break;
+                            case Cursor.FIELD_TYPE_STRING:
+                                //noinspection DuplicateBranchesInSwitch
+                                value = cursor.getString(i);
+                                break;
+                            case Cursor.FIELD_TYPE_BLOB:
+                                value = "blob";
+                                break;
+                            default:
+                                value = cursor.getString(i);
+                                break;
+                        }
+
+                        if (value != null) {
+                            stringBuilder.append(value);
+                        }
+                        if (i < cursor.getColumnCount() - 1) {
+                            stringBuilder.append(",");
+                        }
+                    }
+                    rows.add(stringBuilder.toString());
+                } while (cursor.moveToNext());
+            }
+        }
+
         final ContentProviderAidlInterface.Stub aidlCall = new ContentProviderAidlInterface.Stub() {
 
             @Override
@@ -594,7 +3294,7 @@ public class SQLiteContentProvider extends ContentProvider {
                     ContentValues values,
                     ContentValues[] rows,
                     boolean displayQueryResults) {
-                databaseOperationsThread.addOperationToQueue(new DatabaseOperationRunnable(
+                DatabaseOperationRunnable operation = new DatabaseOperationRunnable(
                         sqlType,
                         sql,
                         dbName,
@@ -609,12 +3309,20 @@ public class SQLiteContentProvider extends ContentProvider {
                         limitEndPosition,
                         values,
                         rows,
-                        displayQueryResults));
+                        displayQueryResults);
+                if (!queryCoalescer.coalesce(operation)) {
+                    databaseOperationsThread.addOperationToQueue(operation);
+                }
             }
 
             @Override
             public void cancelQuery() {
                 cancellationSignal.cancel();
+                synchronized (backgroundOperations) {
+                    for (CancellationSignal signal : backgroundOperations) {
+                        signal.cancel();
+                    }
+                }
             }
 
             @Override
@@ -647,6 +3355,19 @@ public class SQLiteContentProvider extends ContentProvider {
         return null;
     }
 
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (uriMatcher.match(uri) == BACKUP && "r".equals(mode) &&
+                decryptUriAccessParameter(uri.getQueryParameter(KEY_URI_PARAMETER_PROVIDER_ACCESS_CODE))) {
+            File file = OnlineBackup.getBackupFile(Objects.requireNonNull(getContext()).getCacheDir(),
+                    uri.getLastPathSegment());
+            if (file != null) {
+                return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+            }
+        }
+        throw new FileNotFoundException(uri.toString());
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
         return null;
@@ -658,7 +3379,10 @@ public class SQLiteContentProvider extends ContentProvider {
         Cursor cursor = null;
 
         if (decryptUriAccessParameter(uri.getQueryParameter(KEY_URI_PARAMETER_PROVIDER_ACCESS_CODE))) {
-            if (dbHelper != null) {
+            ConnectionHandle connection = acquireConnection();
+            if (connection != null) {
+                SQLiteDatabase db = connection.db;
+                String databaseName = connection.databaseName;
                 String table = uri.getQueryParameter(KEY_URI_PARAMETER_TABLE);
                 String sql = uri.getQueryParameter(KEY_URI_PARAMETER_SQL);
                 String rowsLimit = uri.getQueryParameter(KEY_URI_PARAMETER_LIMIT);
@@ -672,41 +3396,78 @@ public class SQLiteContentProvider extends ContentProvider {
                     }
                 }
 
-                switch (uriMatcher.match(uri)) {
-                    case SIMPLE_QUERY:
-                        cursor = db.query(
-                                false,
-                                table,
-                                projection,
-                                selection,
-                                selectionArgs,
-                                null,
-                                null,
-                                sortOrder,
-                                rowsLimit,
-                                cancelSignal);
-                        break;
+                boolean wrapped = false;
+                try {
+                    switch (uriMatcher.match(uri)) {
+                        case SIMPLE_QUERY:
+                            long queryStart = System.nanoTime();
+                            cursor = db.query(
+                                    false,
+                                    table,
+                                    projection,
+                                    FtsShadowIndex.rewriteSelection(db, table, selection),
+                                    selectionArgs,
+                                    null,
+                                    null,
+                                    sortOrder,
+                                    rowsLimit,
+                                    cancelSignal);
+                            // The Binder transport fills the first window straight away, counting here
+                            // only moves that work in front of the timing.
+                            cursor.getCount();
+                            IndexAdvisor.record(db, table, projection, selection, selectionArgs, sortOrder,
+                                    System.nanoTime() - queryStart);
+                            break;
 
-                    case DML_STATEMENT:
-                    case DDL_STATEMENT:
-                        db.execSQL(sql);
-                        break;
+                        case DML_STATEMENT:
+                            db.execSQL(sql);
+                            changeNotifier.notifyTableChanged(databaseName, ChangeNotifier.getStatementTable(sql));
+                            break;
 
-                    case COMPLEX_QUERY:
-                        if (sql != null) {
-                            cursor = db.rawQuery(sql, selectionArgs, cancelSignal);
-                        }
-                        break;
+                        case DDL_STATEMENT:
+                            db.execSQL(sql);
+                            changeNotifier.notifyTableChanged(databaseName, null);
+                            break;
 
-                    case FK_CONSTRAINT:
-                        String toggleFkConstraint = uri.getQueryParameter(KEY_URI_PARAMETER_FK);
-                        if (toggleFkConstraint != null) {
-                            db.setForeignKeyConstraintsEnabled(Boolean.parseBoolean(toggleFkConstraint));
-                        }
-                        break;
+                        case COMPLEX_QUERY:
+                            if (sql != null) {
+                                cursor = db.rawQuery(sql, selectionArgs, cancelSignal);
+                            }
+                            break;
 
-                    default:
-                        throw new UnsupportedOperationException("Unknown URI: " + uri);
+                        case CHANGES_SINCE:
+                            String sinceVersion = uri.getQueryParameter(KEY_URI_PARAMETER_SINCE_VERSION);
+                            cursor = ChangeTracker.queryChangesSince(
+                                    db,
+                                    table,
+                                    projection,
+                                    sinceVersion != null ? Long.parseLong(sinceVersion) : 0L,
+                                    cancelSignal);
+                            break;
+
+                        case FK_CONSTRAINT:
+                            String toggleFkConstraint = uri.getQueryParameter(KEY_URI_PARAMETER_FK);
+                            if (toggleFkConstraint != null) {
+                                db.setForeignKeyConstraintsEnabled(Boolean.parseBoolean(toggleFkConstraint));
+                            }
+                            break;
+
+                        default:
+                            throw new UnsupportedOperationException("Unknown URI: " + uri);
+                    }
+                    if (cursor != null) {
+                        cursor = new ConnectionCursor(cursor, connection);
+                        wrapped = true;
+                    }
+                } finally {
+                    // A returned cursor keeps the connection until the client closes it. Without one,
+                    // including a cursor opened before an exception, the connection is given back here.
+                    if (!wrapped) {
+                        if (cursor != null) {
+                            cursor.close();
+                        }
+                        connection.release();
+                    }
                 }
             }
         } else {
@@ -726,27 +3487,40 @@ public class SQLiteContentProvider extends ContentProvider {
 
         if (decryptUriAccessParameter(uri.getQueryParameter(KEY_URI_PARAMETER_PROVIDER_ACCESS_CODE))) {
 
-            if (dbHelper != null) {
+            ConnectionHandle connection = acquireConnection();
+            if (connection != null) {
+                SQLiteDatabase db = connection.db;
                 String sql = uri.getQueryParameter(KEY_URI_PARAMETER_SQL);
 
                 try {
-                    db.beginTransaction();
-                    if (sql != null) {
-                        db.execSQL(sql);
-                        id = 0L;
-                    } else {
-                        id = db.insertOrThrow(table, null, contentValues);
-                    }
+                    try {
+                        db.beginTransaction();
+                        if (sql != null) {
+                            db.execSQL(sql);
+                            id = 0L;
+                        } else {
+                            id = db.insertOrThrow(table, null, contentValues);
+                        }
 
-                    Cursor cursor = db.rawQuery("select changes()", null);
-                    if (cursor != null) {
-                        if (cursor.moveToFirst())
-                            rowsInserted = cursor.getInt(0);
-                        cursor.close();
+                        Cursor cursor = db.rawQuery("select changes()", null);
+                        if (cursor != null) {
+                            if (cursor.moveToFirst())
+                                rowsInserted = cursor.getInt(0);
+                            cursor.close();
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
                     }
-                    db.setTransactionSuccessful();
+
+                    ChangeTracker.onRowsChanged(db, rowsInserted);
                 } finally {
-                    db.endTransaction();
+                    connection.release();
+                }
+
+                if (rowsInserted > 0) {
+                    changeNotifier.notifyTableChanged(connection.databaseName,
+                            sql != null ? ChangeNotifier.getStatementTable(sql) : table);
                 }
             }
         }
@@ -761,28 +3535,39 @@ public class SQLiteContentProvider extends ContentProvider {
 
         if (decryptUriAccessParameter(uri.getQueryParameter(KEY_URI_PARAMETER_PROVIDER_ACCESS_CODE))) {
 
-            if (dbHelper != null) {
+            ConnectionHandle connection = acquireConnection();
+            if (connection != null) {
+                SQLiteDatabase db = connection.db;
 
                 String table = uri.getQueryParameter(KEY_URI_PARAMETER_TABLE);
                 String sql = uri.getQueryParameter(KEY_URI_PARAMETER_SQL);
 
-                if (sql != null) {
-                    try {
-                        db.beginTransaction();
-                        db.execSQL(sql);
-                        Cursor cursor = db.rawQuery("select changes()", null);
-                        if (cursor != null) {
-                            if (cursor.moveToFirst())
-                                rowsDeleted = cursor.getInt(0);
-                            cursor.close();
+                try {
+                    if (sql != null) {
+                        try {
+                            db.beginTransaction();
+                            db.execSQL(sql);
+                            Cursor cursor = db.rawQuery("select changes()", null);
+                            if (cursor != null) {
+                                if (cursor.moveToFirst())
+                                    rowsDeleted = cursor.getInt(0);
+                                cursor.close();
+                            }
+                            db.setTransactionSuccessful();
+                        } finally {
+                            db.endTransaction();
                         }
-                        db.setTransactionSuccessful();
-                    } finally {
-                        db.endTransaction();
+                    } else {
+                        rowsDeleted = db.delete(table, selection, selectionArgs);
                     }
+                    ChangeTracker.onRowsChanged(db, rowsDeleted);
+                } finally {
+                    connection.release();
+                }
 
-                } else {
-                    rowsDeleted = db.delete(table, selection, selectionArgs);
+                if (rowsDeleted > 0) {
+                    changeNotifier.notifyTableChanged(connection.databaseName,
+                            sql != null ? ChangeNotifier.getStatementTable(sql) : table);
                 }
             }
         }
@@ -796,26 +3581,38 @@ public class SQLiteContentProvider extends ContentProvider {
         int rowsUpdated = 0;
 
         if (decryptUriAccessParameter(uri.getQueryParameter(KEY_URI_PARAMETER_PROVIDER_ACCESS_CODE))) {
-            if (dbHelper != null) {
+            ConnectionHandle connection = acquireConnection();
+            if (connection != null) {
+                SQLiteDatabase db = connection.db;
                 String sql = uri.getQueryParameter(KEY_URI_PARAMETER_SQL);
+                String table = uri.getQueryParameter(KEY_URI_PARAMETER_TABLE);
 
-                if (sql != null) {
-                    try {
-                        db.beginTransaction();
-                        db.execSQL(sql);
-                        Cursor cursor = db.rawQuery("select changes()", null);
-                        if (cursor != null) {
-                            if (cursor.moveToFirst())
-                                rowsUpdated = cursor.getInt(0);
-                            cursor.close();
+                try {
+                    if (sql != null) {
+                        try {
+                            db.beginTransaction();
+                            db.execSQL(sql);
+                            Cursor cursor = db.rawQuery("select changes()", null);
+                            if (cursor != null) {
+                                if (cursor.moveToFirst())
+                                    rowsUpdated = cursor.getInt(0);
+                                cursor.close();
+                            }
+                            db.setTransactionSuccessful();
+                        } finally {
+                            db.endTransaction();
                         }
-                        db.setTransactionSuccessful();
-                    } finally {
-                        db.endTransaction();
+                    } else {
+                        rowsUpdated = db.update(table, values, selection, selectionArgs);
                     }
-                } else {
-                    String table = uri.getQueryParameter(KEY_URI_PARAMETER_TABLE);
-                    rowsUpdated = db.update(table, values, selection, selectionArgs);
+                    ChangeTracker.onRowsChanged(db, rowsUpdated);
+                } finally {
+                    connection.release();
+                }
+
+                if (rowsUpdated > 0) {
+                    changeNotifier.notifyTableChanged(connection.databaseName,
+                            sql != null ? ChangeNotifier.getStatementTable(sql) : table);
                 }
             }
         }
@@ -831,12 +3628,15 @@ public class SQLiteContentProvider extends ContentProvider {
         if (decryptUriAccessParameter(operations.get(0).getUri().getQueryParameter(KEY_URI_PARAMETER_PROVIDER_ACCESS_CODE))) {
             results = new ContentProviderResult[operations.size()];
 
-            if (dbHelper != null) {
+            if (currentConnection.get() != null) {
+                changeNotifier.beginHold();
                 try {
                     results = super.applyBatch(operations);
                 } catch (OperationApplicationException oae) {
                     Log.d("SQLiteContentProvider", "Exception:" + oae.toString() + "\n" +
                             Arrays.toString(Thread.currentThread().getStackTrace()).replace(',', '\n'));
+                } finally {
+                    changeNotifier.endHold(true);
                 }
             }
         }
@@ -844,46 +3644,109 @@ public class SQLiteContentProvider extends ContentProvider {
         return results;
     }
 
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+
+        changeNotifier.beginHold();
+        try {
+            return super.bulkInsert(uri, values);
+        } finally {
+            changeNotifier.endHold(true);
+        }
+    }
+
     @Override
     public Bundle call(String method, String arg, Bundle extras) {
 
         switch (method) {
             case PROVIDER_CALL_METHOD_OPEN:
-                if (db != null && db.isOpen()) {
-                    db.close();
-                }
-                if (dbHelper != null) {
-                    dbHelper.close();
-                }
+                // In-flight users of the previous connection keep it open until they release it.
+                ConnectionHandle connection = createConnectionHandle(extras.getString(KEY_BUNDLE_DATABASE));
+                swapConnection(connection);
 
-                createDBHelperInstance(extras.getString(KEY_BUNDLE_DATABASE));
-
-                if (dbHelper != null) {
-                    db = dbHelper.getWritableDatabase();
-                }
                 Bundle bundle = new Bundle();
-                bundle.putString(KEY_BUNDLE_CONNECTION_CHECK, String.valueOf(db != null && db.isOpen()));
+                bundle.putString(KEY_BUNDLE_CONNECTION_CHECK, String.valueOf(connection != null && connection.db.isOpen()));
                 return bundle;
 
             case PROVIDER_CALL_METHOD_CLOSE:
-                if (db != null && db.isOpen()) {
-                    db.close();
-                }
-                if (dbHelper != null) {
-                    dbHelper.close();
-                }
+                swapConnection(null);
                 break;
 
             case PROVIDER_CALL_METHOD_CHECK:
+                connection = currentConnection.get();
                 bundle = new Bundle();
-                bundle.putString(KEY_BUNDLE_CONNECTION_CHECK, String.valueOf(db != null && db.isOpen()));
+                bundle.putString(KEY_BUNDLE_CONNECTION_CHECK, String.valueOf(connection != null && connection.db.isOpen()));
                 return bundle;
+
+            case PROVIDER_CALL_METHOD_ENABLE_CHANGE_TRACKING:
+            case PROVIDER_CALL_METHOD_DISABLE_CHANGE_TRACKING:
+            case PROVIDER_CALL_METHOD_CHANGE_VERSION:
+            case PROVIDER_CALL_METHOD_COMPACT_CHANGE_LOG:
+                if (extras == null || !decryptUriAccessParameter(extras.getString(KEY_BUNDLE_ACCESS_CODE))) {
+                    break;
+                }
+                connection = acquireConnection();
+                if (connection == null) {
+                    break;
+                }
+                try {
+                    if (method.equals(PROVIDER_CALL_METHOD_ENABLE_CHANGE_TRACKING)) {
+                        ChangeTracker.enable(connection.db, arg);
+                    } else if (method.equals(PROVIDER_CALL_METHOD_DISABLE_CHANGE_TRACKING)) {
+                        ChangeTracker.disable(connection.db, arg);
+                    } else if (method.equals(PROVIDER_CALL_METHOD_COMPACT_CHANGE_LOG)) {
+                        ChangeTracker.compact(connection.db);
+                    }
+                    bundle = new Bundle();
+                    bundle.putString(KEY_BUNDLE_CHANGE_VERSION, String.valueOf(ChangeTracker.getCurrentVersion(connection.db)));
+                    bundle.putString(KEY_BUNDLE_MIN_CHANGE_VERSION, String.valueOf(ChangeTracker.getMinimumVersion(connection.db, arg)));
+                    return bundle;
+                } finally {
+                    connection.release();
+                }
+
+            case PROVIDER_CALL_METHOD_ROW_COUNT:
+                if (extras == null || !decryptUriAccessParameter(extras.getString(KEY_BUNDLE_ACCESS_CODE))) {
+                    break;
+                }
+                connection = acquireConnection();
+                if (connection == null) {
+                    break;
+                }
+                try {
+                    RowCountCache.RowCount count = RowCountCache.getRowCount(connection.db, arg,
+                            Boolean.parseBoolean(extras.getString(KEY_BUNDLE_APPROXIMATE)), false);
+                    bundle = new Bundle();
+                    bundle.putString(KEY_BUNDLE_ROW_COUNT, String.valueOf(count.count));
+                    bundle.putString(KEY_BUNDLE_ROW_COUNT_SOURCE, count.source);
+                    return bundle;
+                } finally {
+                    connection.release();
+                }
+
+            case PROVIDER_CALL_METHOD_INDEX_ADVICE:
+                if (extras == null || !decryptUriAccessParameter(extras.getString(KEY_BUNDLE_ACCESS_CODE))) {
+                    break;
+                }
+                connection = acquireConnection();
+                if (connection == null) {
+                    break;
+                }
+                // Only queries made through this provider, the service keeps its own in its process.
+                try {
+                    bundle = new Bundle();
+                    bundle.putStringArrayList(KEY_BUNDLE_INDEX_SUGGESTIONS, new ArrayList<>(IndexAdvisor.getSuggestions(
+                            connection.db, Boolean.parseBoolean(extras.getString(KEY_BUNDLE_VERIFY)))));
+                    return bundle;
+                } finally {
+                    connection.release();
+                }
         }
 
         return null;
     }
  
-    private void createDBHelperInstance(String dbName) {
+    private ConnectionHandle createConnectionHandle(String dbName) {
 
         try {
             String dbPath = Objects.requireNonNull(getContext()).getApplicationInfo().dataDir + "/databases/";
@@ -899,9 +3762,8 @@ public class SQLiteContentProvider extends ContentProvider {
                             int dbVersion = sqliteDatabase.getVersion();
                             sqliteDatabase.close();
 
-                            dbHelper = new DBHelper(getContext(), file.getName(), dbVersion);
-                            db = dbHelper.getWritableDatabase();
-                            break;
+                            DBHelper dbHelper = new DBHelper(getContext(), file.getName(), dbVersion);
+                            return new ConnectionHandle(dbHelper, dbHelper.getWritableDatabase(), file.getName());
                         }
                     }
                 }
@@ -910,6 +3772,45 @@ public class SQLiteContentProvider extends ContentProvider {
             Log.d("SQLiteContentProvider", "Exception:" + e.toString() + "\n" +
                     Arrays.toString(Thread.currentThread().getStackTrace()).replace(',', '\n'));
         }
+        return null;
+    }
+
+    private static ConnectionHandle acquireConnection() {
+        while (true) {
+            ConnectionHandle connection = currentConnection.get();
+            if (connection == null || connection.tryAcquire()) {
+                return connection;
+            }
+            // Released and closed after being swapped out, pick up its replacement.
+        }
+    }
+
+    private static void swapConnection(ConnectionHandle connection) {
+        ConnectionHandle previous = currentConnection.getAndSet(connection);
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    private static long queryLong(SQLiteDatabase db, String sql, String[] selectionArgs, long defaultValue) {
+        Cursor cursor = db.rawQuery(sql, selectionArgs);
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : defaultValue;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String escapeValue(String value) {
+        return value == null ? "" : value.replace("\\", "\\\\").replace(",", "\\,");
+    }
+
+    private static String quoteIdentifier(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    private static String quoteLiteral(String value) {
+        return "'" + value.replace("'", "''") + "'";
     }
 
     private static boolean decryptUriAccessParameter(String encodedEncryptedParameterString) {
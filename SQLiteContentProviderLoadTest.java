@@ -0,0 +1,382 @@
+/*------------------------------------------------------------------------------------------
+ |              Class: SQLiteContentProviderLoadTest.java
+ |             Author: Jon Bateman
+ |            Version: 1.2.9
+ |
+ |            Purpose: Optional multi-client load and latency harness for the AIDL service in
+ |                     SQLiteContentProvider. It is not needed by the provider and should not be
+ |                     shipped in release builds, add it to a test or debug source set only.
+ |                     The harness drives a ContentProviderAidlService instance of its own, for
+ |                     example one created with Robolectric.setupService(), that no client is
+ |                     bound to. That instance has its own connection, cancellation signal,
+ |                     worker thread, change notification holds and maintenance state, and the
+ |                     harness points it at a scratch database that is deleted afterwards. What
+ |                     the instances still share is process wide: the search thread pool and the
+ |                     schema, row count and index advisor caches, which are keyed by database
+ |                     so the scratch database never mixes with real entries.
+ |                     Each simulated client calls executeDatabaseOperation() through the
+ |                     service's binder with a local callback and waits for the result before
+ |                     sending its next operation. Latency is measured from the call to the
+ |                     callback and so includes queueing in the service's scheduler.
+ |                     run() returns a JSON report (throughput, p50/p99/p999 latency per kind of
+ |                     operation, queue depth and heap use) so runs can be compared.
+ |
+ |                     App specific alterations:-
+ |                         1. At line 30 use package name specific to your app.
+ |
+ |      Inherits from: N/A
+ |
+ |         Interfaces: N/A
+ |
+ | Intent/Bundle Args: N/A
+ +------------------------------------------------------------------------------------------*/
+package <your_package_name>;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+import com.cqueltech.sqlitedevstudio.ContentProviderAidlCallback;
+import com.cqueltech.sqlitedevstudio.ContentProviderAidlInterface;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class SQLiteContentProviderLoadTest {
+
+    private static final String SCRATCH_DATABASE = "_provider_load_test.db";
+    private static final String LOAD_TEST_TABLE = "_provider_load_test";
+    private static final String SQL_TYPE_QUERY = "query";
+    private static final String SQL_TYPE_INSERT = "insert";
+    private static final String SQL_TYPE_TRANSACTION = "transaction";
+    private static final String SQL_TYPE_CLOSE_DATABASE = "closeDatabaseConnection";
+    private static final String SQL_TYPE_SCHEDULER_STATS = "schedulerStats";
+    private static final long OPERATION_TIMEOUT_MS = 30000L;
+    private static final long SAMPLE_INTERVAL_MS = 50L;
+    private static final int TRANSACTION_INSERTS = 5;
+    private static final int READ_ROWS = 50;
+    // Position of the first statistics row after the five result fields and the header.
+    private static final int FIRST_RESULT_ROW = 6;
+
+    private final SQLiteContentProvider.ContentProviderAidlService service;
+    private final ContentProviderAidlInterface aidlCall;
+    private final String accessCode;
+    private final int clients;
+    private final int operationsPerClient;
+    private final int readPercent;
+    private final int writePercent;
+    private final int transactionPercent;
+    private final int seedRows;
+    private final Map<String, List<Long>> latencies = new HashMap<>();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final AtomicInteger timeouts = new AtomicInteger();
+    private final AtomicInteger cancelledReads = new AtomicInteger();
+
+    /*
+     * config is a JSON object with clients, operations_per_client, the read, write and transaction
+     * percentages (the remainder are cancelled slow queries) and seed_rows. accessCode is the
+     * encrypted provider access code, as SQLiteDevStudio sends it.
+     */
+    public SQLiteContentProviderLoadTest(SQLiteContentProvider.ContentProviderAidlService service,
+                                         String accessCode, JSONObject config) {
+        this.service = service;
+        this.aidlCall = ContentProviderAidlInterface.Stub.asInterface(service.onBind(null));
+        this.accessCode = accessCode;
+        this.clients = Math.max(1, config.optInt("clients", 4));
+        this.operationsPerClient = Math.max(1, config.optInt("operations_per_client", 100));
+        this.readPercent = config.optInt("read", 70);
+        this.writePercent = config.optInt("write", 20);
+        this.transactionPercent = config.optInt("transaction", 5);
+        this.seedRows = Math.max(0, config.optInt("seed_rows", 1000));
+        for (String kind : new String[]{"read", "write", "transaction", "cancel", "all"}) {
+            latencies.put(kind, new ArrayList<Long>());
+        }
+    }
+
+    private static class ResultCallback extends ContentProviderAidlCallback.Stub {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private List<String> result;
+
+        @Override
+        public void aidlInterfaceCallback(List<String> list) {
+            result = list;
+            latch.countDown();
+        }
+    }
+
+    /*
+     * Blocks until every client has finished, call it from a background thread.
+     */
+    public String run() throws JSONException {
+        File scratchFile = service.getDatabasePath(SCRATCH_DATABASE);
+        try {
+            createScratchDatabase(scratchFile);
+            // The service opens its connection at the first begin and keeps it after the commit,
+            // so every operation measured below autocommits as a client's would.
+            requireSuccess(execute(SQL_TYPE_TRANSACTION, "begin transaction", null, null, null, null));
+            requireSuccess(execute(SQL_TYPE_TRANSACTION, "commit", null, null, null, null));
+            String report = measure().toString();
+            Log.d("SQLiteContentProvider", "Load test: " + report);
+            return report;
+        } finally {
+            execute(SQL_TYPE_CLOSE_DATABASE, null, null, null, null, null);
+            SQLiteDatabase.deleteDatabase(scratchFile);
+        }
+    }
+
+    private void createScratchDatabase(File scratchFile) {
+        SQLiteDatabase.deleteDatabase(scratchFile);
+        SQLiteDatabase scratch = SQLiteDatabase.openOrCreateDatabase(scratchFile, null);
+        try {
+            scratch.beginTransaction();
+            try {
+                scratch.execSQL("create table " + LOAD_TEST_TABLE + " (id integer primary key, value text, created integer)");
+                for (int i = 0; i < seedRows; i++) {
+                    scratch.insert(LOAD_TEST_TABLE, null, createRow(i));
+                }
+                scratch.setTransactionSuccessful();
+            } finally {
+                scratch.endTransaction();
+            }
+        } finally {
+            scratch.close();
+        }
+    }
+
+    private JSONObject measure() throws JSONException {
+        final Runtime runtime = Runtime.getRuntime();
+        final long heapStart = runtime.totalMemory() - runtime.freeMemory();
+        final long[] samples = new long[4]; // count, depth total, max depth, max heap
+        final AtomicBoolean running = new AtomicBoolean(true);
+        Thread sampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running.get()) {
+                    int depth = getQueueDepth();
+                    synchronized (samples) {
+                        samples[0]++;
+                        samples[1] += depth;
+                        samples[2] = Math.max(samples[2], depth);
+                        samples[3] = Math.max(samples[3], runtime.totalMemory() - runtime.freeMemory());
+                    }
+                    SystemClock.sleep(SAMPLE_INTERVAL_MS);
+                }
+            }
+        }, "LoadTestSampler");
+
+        ExecutorService clientExecutor = Executors.newFixedThreadPool(clients);
+        final CountDownLatch finished = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        sampler.start();
+        for (int i = 0; i < clients; i++) {
+            final Random random = new Random(i);
+            clientExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int operation = 0; operation < operationsPerClient; operation++) {
+                            runOperation(random);
+                        }
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long durationNanos = System.nanoTime() - start;
+        running.set(false);
+        clientExecutor.shutdown();
+
+        int operations = clients * operationsPerClient;
+        JSONObject config = new JSONObject();
+        config.put("clients", clients);
+        config.put("operations_per_client", operationsPerClient);
+        config.put("read", readPercent);
+        config.put("write", writePercent);
+        config.put("transaction", transactionPercent);
+        config.put("cancel", Math.max(0, 100 - readPercent - writePercent - transactionPercent));
+        config.put("seed_rows", seedRows);
+
+        JSONObject latency = new JSONObject();
+        synchronized (latencies) {
+            for (Map.Entry<String, List<Long>> entry : latencies.entrySet()) {
+                latency.put(entry.getKey(), summarise(entry.getValue()));
+            }
+        }
+
+        JSONObject queueDepth = new JSONObject();
+        JSONObject heap = new JSONObject();
+        synchronized (samples) {
+            queueDepth.put("max", samples[2]);
+            queueDepth.put("avg", samples[0] == 0 ? 0.0 : (double) samples[1] / samples[0]);
+            heap.put("start", heapStart);
+            heap.put("max", samples[3]);
+        }
+        heap.put("end", runtime.totalMemory() - runtime.freeMemory());
+
+        JSONObject report = new JSONObject();
+        report.put("config", config);
+        report.put("operations", operations);
+        report.put("duration_ms", durationNanos / 1000000L);
+        report.put("throughput_ops_per_s", operations * 1e9 / durationNanos);
+        report.put("errors", errors.get());
+        report.put("timeouts", timeouts.get());
+        report.put("cancelled_reads", cancelledReads.get());
+        report.put("latency_ms", latency);
+        report.put("queue_depth", queueDepth);
+        report.put("heap_bytes", heap);
+        return report;
+    }
+
+    private void runOperation(Random random) {
+        int choice = random.nextInt(100);
+        long start = System.nanoTime();
+        String kind;
+        List<String> result;
+        if (choice < readPercent) {
+            kind = "read";
+            int from = random.nextInt(Math.max(1, seedRows));
+            result = execute(SQL_TYPE_QUERY, null, LOAD_TEST_TABLE, "id between ? and ?",
+                    new String[]{String.valueOf(from), String.valueOf(from + READ_ROWS)}, null);
+            if (result != null && result.get(0) == null) {
+                cancelledReads.incrementAndGet();
+            }
+        } else if (choice < readPercent + writePercent) {
+            kind = "write";
+            result = execute(SQL_TYPE_INSERT, null, LOAD_TEST_TABLE, null, null, createRow(random.nextInt()));
+        } else if (choice < readPercent + writePercent + transactionPercent) {
+            kind = "transaction";
+            result = execute(SQL_TYPE_TRANSACTION, "begin transaction", null, null, null, null);
+            for (int i = 0; i < TRANSACTION_INSERTS && isSuccess(result); i++) {
+                result = execute(SQL_TYPE_INSERT, null, LOAD_TEST_TABLE, null, null, createRow(random.nextInt()));
+            }
+            List<String> commit = execute(SQL_TYPE_TRANSACTION, isSuccess(result) ? "commit" : "rollback",
+                    null, null, null, null);
+            if (isSuccess(result)) {
+                result = commit;
+            }
+        } else {
+            kind = "cancel";
+            // A cross join over the seed rows, slow enough to be cut short but bounded if the
+            // cancel arrives before the query starts and is discarded.
+            ResultCallback resultCallback = send(SQL_TYPE_QUERY, "select count(*) from " + LOAD_TEST_TABLE +
+                    " a, " + LOAD_TEST_TABLE + " b where a.id <= " + seedRows + " and b.id <= " + seedRows,
+                    null, null, null, null);
+            try {
+                aidlCall.cancelQuery();
+            } catch (RemoteException e) {
+                Log.d("SQLiteContentProvider", "Exception:" + e.toString());
+            }
+            result = await(resultCallback);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (result == null) {
+            timeouts.incrementAndGet();
+            return;
+        }
+        if (result.get(0) != null && result.get(0).startsWith("Exception")) {
+            errors.incrementAndGet();
+        }
+        synchronized (latencies) {
+            latencies.get(kind).add(elapsed);
+            latencies.get("all").add(elapsed);
+        }
+    }
+
+    private int getQueueDepth() {
+        List<String> result = execute(SQL_TYPE_SCHEDULER_STATS, null, null, null, null, null);
+        int depth = 0;
+        if (result != null) {
+            for (int i = FIRST_RESULT_ROW; i < result.size(); i++) {
+                depth += Integer.parseInt(result.get(i).split(",")[1]);
+            }
+        }
+        return depth;
+    }
+
+    private ContentValues createRow(int index) {
+        ContentValues values = new ContentValues();
+        values.put("value", "load test row " + index);
+        values.put("created", System.currentTimeMillis());
+        return values;
+    }
+
+    private List<String> execute(String sqlType, String sql, String object, String selection,
+                                 String[] selectionArgs, ContentValues values) {
+        return await(send(sqlType, sql, object, selection, selectionArgs, values));
+    }
+
+    private ResultCallback send(String sqlType, String sql, String object, String selection,
+                                String[] selectionArgs, ContentValues values) {
+        ResultCallback resultCallback = new ResultCallback();
+        boolean query = sqlType.equals(SQL_TYPE_QUERY);
+        try {
+            aidlCall.executeDatabaseOperation(sqlType, sql, SCRATCH_DATABASE, accessCode, resultCallback, object, null,
+                    selection, selectionArgs, null, query ? "0" : null, query ? String.valueOf(READ_ROWS) : null,
+                    values, null, true);
+        } catch (RemoteException e) {
+            Log.d("SQLiteContentProvider", "Exception:" + e.toString());
+            resultCallback.aidlInterfaceCallback(Collections.singletonList("Exception:" + e.toString()));
+        }
+        return resultCallback;
+    }
+
+    private List<String> await(ResultCallback resultCallback) {
+        try {
+            if (resultCallback.latch.await(OPERATION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                return resultCallback.result;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    private boolean isSuccess(List<String> result) {
+        return result != null && result.get(0) != null && !result.get(0).startsWith("Exception");
+    }
+
+    private void requireSuccess(List<String> result) {
+        if (!isSuccess(result)) {
+            throw new IllegalStateException("Load test setup failed: " + (result == null ? "timeout" : result.get(0)));
+        }
+    }
+
+    private JSONObject summarise(List<Long> values) throws JSONException {
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        JSONObject summary = new JSONObject();
+        summary.put("count", sorted.size());
+        summary.put("p50", percentile(sorted, 0.50));
+        summary.put("p99", percentile(sorted, 0.99));
+        summary.put("p999", percentile(sorted, 0.999));
+        summary.put("max", sorted.isEmpty() ? 0.0 : sorted.get(sorted.size() - 1) / 1e6);
+        return summary;
+    }
+
+    private double percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) {
+            return 0.0;
+        }
+        int index = (int) Math.ceil(percentile * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index))) / 1e6;
+    }
+}